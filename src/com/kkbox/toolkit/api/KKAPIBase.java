@@ -20,6 +20,10 @@ package com.kkbox.toolkit.api;
 import com.kkbox.toolkit.internal.api.KKAPIRequestListener;
 import com.kkbox.toolkit.utils.KKDebug;
 
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 public abstract class KKAPIBase {
 	public static class ErrorCode {
 		public static final int NO_ERROR = 0;
@@ -28,8 +32,12 @@ public abstract class KKAPIBase {
 		public static final int INVALID_API_FORMAT = -103;
 	}
 
+	// running APIs that were given an owner, so they can be cancelled together
+	private static final WeakHashMap<KKAPIBase, Object> runningOwners = new WeakHashMap<KKAPIBase, Object>();
+
 	private KKAPIRequest request;
 	private KKAPIListener apiListener;
+	private Object owner;
 
 	private int errorCode;
 	private boolean isRunning = false;
@@ -43,7 +51,7 @@ public abstract class KKAPIBase {
 			} else if (!isResponseSilent) {
 				onAPIError(errorCode);
 			}
-			isRunning = false;
+			finish();
 		}
 
 		@Override
@@ -51,7 +59,7 @@ public abstract class KKAPIBase {
 			if (!isResponseSilent) {
 				onAPINetworkError();
 			}
-			isRunning = false;
+			finish();
 		}
 
 		@Override
@@ -64,14 +72,37 @@ public abstract class KKAPIBase {
 			if (!isResponseSilent) {
 				onAPIHttpStatusError(statusCode);
 			}
-			isRunning = false;
+			finish();
 		}
 	};
 
+	/**
+	 * Cancels all running APIs that belong to owner.
+	 */
+	public static void cancelRequests(Object owner) {
+		ArrayList<KKAPIBase> apis = new ArrayList<KKAPIBase>();
+		for (Map.Entry<KKAPIBase, Object> entry : runningOwners.entrySet()) {
+			if (entry.getValue() == owner) {
+				apis.add(entry.getKey());
+			}
+		}
+		for (KKAPIBase api : apis) {
+			api.cancel();
+		}
+	}
+
 	public void cancel() {
 		if (request != null) {
 			request.cancel();
 		}
+		runningOwners.remove(this);
+	}
+
+	/**
+	 * Lets cancelRequests(owner) cancel this API, e.g. when the KKFragment that called it goes away.
+	 */
+	public void setOwner(Object owner) {
+		this.owner = owner;
 	}
 	
 	public void setResponseSilent(boolean isResponseSilent) {
@@ -116,6 +147,14 @@ public abstract class KKAPIBase {
 	protected void execute(KKAPIRequest request) {
 		this.request = request;
 		isRunning = true;
+		if (owner != null) {
+			runningOwners.put(this, owner);
+		}
 		request.execute(apiRequestListener);
 	}
+
+	private void finish() {
+		isRunning = false;
+		runningOwners.remove(this);
+	}
 }
@@ -29,6 +29,7 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.FileEntity;
@@ -64,6 +65,7 @@ public class KKAPIRequest extends UserTask<Object, Void, Void> {
 	private FileEntity fileEntity;
 	private ByteArrayEntity byteArrayEntity;
 	private Cipher cipher = null;
+	private volatile HttpUriRequest httpRequest;
 
 	public KKAPIRequest(String url, Cipher cipher) {
 		this(url, cipher, 10000);
@@ -128,6 +130,11 @@ public class KKAPIRequest extends UserTask<Object, Void, Void> {
 	public void cancel() {
 		listener = null;
 		this.cancel(true);
+		// close the connection instead of waiting for the response
+		HttpUriRequest request = httpRequest;
+		if (request != null) {
+			request.abort();
+		}
 	}
 
 	@Override
@@ -157,10 +164,15 @@ public class KKAPIRequest extends UserTask<Object, Void, Void> {
 					if (byteArrayEntity != null) {
 						httppost.setEntity(byteArrayEntity);
 					}
-					response = httpclient.execute(httppost);
+					httpRequest = httppost;
 				} else {
-					response = httpclient.execute(new HttpGet(url + getParams));
+					httpRequest = new HttpGet(url + getParams);
+				}
+				// cancel() aborts httpRequest, unless it ran before httpRequest was set
+				if (isCancelled()) {
+					break;
 				}
+				response = httpclient.execute(httpRequest);
 				httpStatusCode = response.getStatusLine().getStatusCode();
 				switch (httpStatusCode) {
 					case 200:
@@ -185,12 +197,15 @@ public class KKAPIRequest extends UserTask<Object, Void, Void> {
 						break;
 				}
 			} catch (final IOException e) {
+				isNetworkError = true;
+				if (isCancelled()) {
+					break;
+				}
 				KKDebug.w("connetion to " + url + getParams + " failed!");
 				retryTimes++;
-				isNetworkError = true;
 				SystemClock.sleep(1000);
 			}
-		} while (isNetworkError && retryTimes < 3);
+		} while (isNetworkError && retryTimes < 3 && !isCancelled());
 		try {
 			if (!isNetworkError && !isHttpStatusError) {
 				if (listener != null) {
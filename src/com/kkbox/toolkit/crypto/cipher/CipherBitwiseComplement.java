@@ -38,21 +38,14 @@ public class CipherBitwiseComplement extends CipherSpi {
     @Override
     protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
             throws IllegalBlockSizeException, BadPaddingException {
-        if (Cipher.ENCRYPT_MODE == opmode || Cipher.DECRYPT_MODE == opmode) {
-    		for (int i = inputOffset; i < inputOffset + input.length; i++) {
-    			input[i] = (byte)~input[i];
-    		}
-    		return input;
-        } else {
-            throw new IllegalStateException();
-        }
+        return engineUpdate(input, inputOffset, inputLen);
     }
 
     @Override
     protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output,
             int outputOffset) throws ShortBufferException, IllegalBlockSizeException,
             BadPaddingException {
-        return 0;
+        return engineUpdate(input, inputOffset, inputLen, output, outputOffset);
     }
 
     @Override
@@ -67,7 +60,7 @@ public class CipherBitwiseComplement extends CipherSpi {
 
     @Override
     protected int engineGetOutputSize(int inputLen) {
-        return 0;
+        return inputLen;
     }
 
     @Override
@@ -102,12 +95,34 @@ public class CipherBitwiseComplement extends CipherSpi {
 
     @Override
     protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
-        return null;
+        byte[] output = new byte[input == null ? 0 : inputLen];
+        complement(input, inputOffset, inputLen, output, 0);
+        return output;
     }
 
     @Override
     protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output,
             int outputOffset) throws ShortBufferException {
-        return 0;
+        if (input == null) {
+            return 0;
+        }
+        if (output == null || output.length - outputOffset < inputLen) {
+            throw new ShortBufferException();
+        }
+        complement(input, inputOffset, inputLen, output, outputOffset);
+        return inputLen;
+    }
+
+    private void complement(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+        if (Cipher.ENCRYPT_MODE != opmode && Cipher.DECRYPT_MODE != opmode) {
+            throw new IllegalStateException();
+        }
+        if (input == null) {
+            return;
+        }
+        // the transform is stateless, so chunks may be processed independently and in place
+        for (int i = 0; i < inputLen; i++) {
+            output[outputOffset + i] = (byte)~input[inputOffset + i];
+        }
     }
 }
@@ -0,0 +1,56 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageDecodeOptions
+ */
+package com.kkbox.toolkit.image;
+
+import android.graphics.Bitmap;
+
+/**
+ * How images are decoded. Without a config, JPEGs, which cannot be transparent, are decoded as RGB_565 at half the memory
+ * of ARGB_8888, and everything else as ARGB_8888. Dithering smooths the banding of gradients decoded as RGB_565.
+ */
+public class KKImageDecodeOptions {
+	public static final KKImageDecodeOptions AUTOMATIC = new KKImageDecodeOptions(null, true);
+
+	private final Bitmap.Config config;
+	private final boolean dither;
+
+	public KKImageDecodeOptions(Bitmap.Config config, boolean dither) {
+		this.config = config;
+		this.dither = dither;
+	}
+
+	public Bitmap.Config getConfig() {
+		return config;
+	}
+
+	public boolean isDither() {
+		return dither;
+	}
+
+	public Bitmap.Config selectConfig(String mimeType) {
+		if (config != null) { return config; }
+		return "image/jpeg".equals(mimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+	}
+
+	/**
+	 * Bitmaps decoded with a fixed config are cached apart from automatically decoded ones of the same url and size.
+	 */
+	public String getCacheKeySuffix() {
+		return config == null ? "" : "#" + config.name();
+	}
+}
@@ -1,296 +1,932 @@
-/* Copyright (C) 2013 KKBOX Inc.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- * ​http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-/**
- * KKImageManager
- */
-package com.kkbox.toolkit.image;
-
-import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.Build;
-import android.view.View;
-import android.widget.ImageView;
-
-import com.kkbox.toolkit.internal.image.KKImageRequest;
-import com.kkbox.toolkit.internal.image.KKImageRequestListener;
-import com.kkbox.toolkit.utils.StringUtils;
-import com.kkbox.toolkit.utils.UserTask;
-
-import java.io.File;
-import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-
-import javax.crypto.Cipher;
-
-public class KKImageManager {
-	public class ActionType {
-		public static final int DOWNLOAD = 0;
-		public static final int CALL_LISTENER = 1;
-		public static final int UPDATE_VIEW_BACKGROUND = 2;
-		public static final int UPDATE_VIEW_SOURCE = 3;
-	}
-
-	private static final int MAX_WORKING_COUNT = 10;
-	private static final long FATAL_STORAGE_SIZE = 30 * 1024 * 1024;
-	private static final HashMap<WeakReference<View>, Bitmap> viewBackgroundBitmapReference = new HashMap<WeakReference<View>, Bitmap>();
-	private static final HashMap<WeakReference<ImageView>, Bitmap> imageViewSourceBitmapReference = new HashMap<WeakReference<ImageView>, Bitmap>();
-
-	private final HashMap<View, KKImageRequest> fetchList = new HashMap<View, KKImageRequest>();
-	private final ArrayList<KKImageRequest> workingList = new ArrayList<KKImageRequest>();
-	private int workingCount = 0;
-	private Context context;
-	private Cipher cipher = null;
-
-	protected KKImageRequestListener imageRequestListener = new KKImageRequestListener() {
-		@Override
-		public void onComplete(KKImageRequest request, Bitmap bitmap) {
-			if (request.getActionType() == ActionType.CALL_LISTENER) {
-				if (request.getImageCacheListener() != null) {
-					request.getImageCacheListener().onReceiveBitmap(bitmap);
-				}
-			} else if (request.getActionType() == ActionType.UPDATE_VIEW_BACKGROUND) {
-				View view = request.getView();
-				view.setBackgroundDrawable(new BitmapDrawable(context.getResources(), bitmap));
-				autoRecycleViewBackgroundBitmap(view);
-				fetchList.remove(view);
-			} else if (request.getActionType() == ActionType.UPDATE_VIEW_SOURCE) {
-				ImageView imageView = (ImageView)request.getView();
-				imageView.setImageBitmap(bitmap);
-				autoRecycleViewSourceBitmap(imageView);
-				fetchList.remove(request.getView());
-			}
-			workingCount--;
-			workingList.remove(request);
-			startFetch();
-		}
-
-		@Override
-		public void onNetworkError(KKImageRequest request) {
-			if (request.getView() != null) {
-				fetchList.remove(request.getView());
-			}
-			workingCount--;
-			workingList.remove(request);
-			startFetch();
-		}
-	};
-
-	public static String getTempImagePath(Context context, String url) {
-		final File cacheDir = new File(context.getCacheDir().getAbsolutePath() + File.separator + "image");
-		if (!cacheDir.exists()) {
-			cacheDir.mkdir();
-		}
-		return context.getCacheDir().getAbsolutePath() + File.separator + "image" + File.separator + StringUtils.getMd5Hash(url);
-	}
-
-	public static void removeCacheIfExists(Context context, String url) {
-		final File cacheFile = new File(getTempImagePath(context, url));
-		cacheFile.delete();
-	}
-
-	public static void autoRecycleViewBackgroundBitmap(View view) {
-		if (Build.VERSION.SDK_INT < 11) {
-			Iterator iterator = viewBackgroundBitmapReference.entrySet().iterator();
-			while (iterator.hasNext()) {
-				Map.Entry<WeakReference<View>, Bitmap> entry = (Map.Entry<WeakReference<View>, Bitmap>)iterator.next();
-				View currentView = entry.getKey().get();
-				if (view.equals(currentView)) {
-					Bitmap bitmap = entry.getValue();
-					if (bitmap != null) {
-						bitmap.recycle();
-						bitmap = null;
-					}
-					iterator.remove();
-				}
-			}
-			Drawable drawable = view.getBackground();
-			if (drawable instanceof BitmapDrawable) {
-				Bitmap bitmap = ((BitmapDrawable)drawable).getBitmap();
-				viewBackgroundBitmapReference.put(new WeakReference<View>(view), bitmap);
-			}
-		}
-	}
-
-	public static void autoRecycleViewSourceBitmap(ImageView view) {
-		if (Build.VERSION.SDK_INT < 11) {
-			Iterator iterator = imageViewSourceBitmapReference.entrySet().iterator();
-			while (iterator.hasNext()) {
-				Map.Entry<WeakReference<ImageView>, Bitmap> entry = (Map.Entry<WeakReference<ImageView>, Bitmap>)iterator.next();
-				ImageView currentView = entry.getKey().get();
-				if (view.equals(currentView)) {
-					Bitmap bitmap = entry.getValue();
-					if (bitmap != null) {
-						bitmap.recycle();
-						bitmap = null;
-					}
-					iterator.remove();
-				}
-			}
-			Drawable drawable = view.getDrawable();
-			if (drawable instanceof BitmapDrawable) {
-				Bitmap bitmap = ((BitmapDrawable)drawable).getBitmap();
-				imageViewSourceBitmapReference.put(new WeakReference<ImageView>(view), bitmap);
-			}
-		}
-	}
-
-	public static void gc() {
-		if (Build.VERSION.SDK_INT < 11) {
-			Iterator iterator = viewBackgroundBitmapReference.entrySet().iterator();
-			while (iterator.hasNext()) {
-				Map.Entry<WeakReference<View>, Bitmap> entry = (Map.Entry<WeakReference<View>, Bitmap>)iterator.next();
-				if (entry.getKey().get() == null) {
-					Bitmap bitmap = entry.getValue();
-					if (bitmap != null) {
-						bitmap.recycle();
-						bitmap = null;
-					}
-					iterator.remove();
-				}
-			}
-			iterator = imageViewSourceBitmapReference.entrySet().iterator();
-			while (iterator.hasNext()) {
-				Map.Entry<WeakReference<ImageView>, Bitmap> entry = (Map.Entry<WeakReference<ImageView>, Bitmap>)iterator.next();
-				if (entry.getKey().get() == null) {
-					Bitmap bitmap = entry.getValue();
-					if (bitmap != null) {
-						bitmap.recycle();
-						bitmap = null;
-					}
-					iterator.remove();
-				}
-			}
-		}
-	}
-
-	public KKImageManager(Context context, Cipher localCipher) {
-		this.context = context;
-		this.cipher = localCipher;
-		if (Build.VERSION.SDK_INT >= 9 && context.getCacheDir().getFreeSpace() < FATAL_STORAGE_SIZE) {
-			File cacheDir = new File(context.getCacheDir().getAbsolutePath() + File.separator + "image");
-			if (cacheDir.exists()) {
-				for (File file : cacheDir.listFiles()) {
-					file.delete();
-				}
-			}
-		}
-		gc();
-	}
-
-	public void downloadBitmap(String url, String localPath, KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener) {
-		KKImageRequest request = new KKImageRequest(context, url, localPath, onReceiveHttpHeaderListener, cipher);
-		workingList.add(request);
-		startFetch();
-	}
-
-	public KKImageRequest loadBitmap(KKImageListener listener, String url, String localPath) {
-		KKImageRequest request = new KKImageRequest(context, url, localPath, listener, cipher);
-		workingList.add(request);
-		startFetch();
-		return request;
-	}
-
-	public void updateViewSource(ImageView view, String url, String localPath, int defaultResourceId) {
-		updateView(view, url, localPath, defaultResourceId, false, false, null);
-	}
-
-	public void updateViewSourceAndSave(ImageView view, String url, String localPath, int defaultResourceId,
-			KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener) {
-		updateView(view, url, localPath, defaultResourceId, false, true, onReceiveHttpHeaderListener);
-	}
-
-	public void updateViewBackground(View view, String url, String localPath, int defaultResourceId) {
-		updateView(view, url, localPath, defaultResourceId, true, false, null);
-	}
-
-	public void updateViewBackgroundAndSave(View view, String url, String localPath, int defaultResourceId,
-			KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener) {
-		updateView(view, url, localPath, defaultResourceId, true, true, onReceiveHttpHeaderListener);
-	}
-
-	public Bitmap loadCache(String url, String localPath) {
-		String cachePath = getTempImagePath(context, url);
-		final File cacheFile = new File(cachePath);
-		if (cacheFile.exists()) { return BitmapFactory.decodeFile(cachePath); }
-		return null;
-	}
-
-	@Override
-	public void finalize() {
-		for (KKImageRequest request : workingList) {
-			request.cancel();
-		}
-	}
-
-	private void updateView(View view, String url, String localPath, int defaultResourceId, boolean updateBackground, boolean saveToLocal,
-			KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener) {
-		KKImageRequest request = fetchList.get(view);
-		if (request != null) {
-			if (request.getUrl().equals(url)) {
-				return;
-			} else {
-				if (request.getStatus() == UserTask.Status.RUNNING) {
-					workingCount--;
-				}
-				request.cancel();
-				workingList.remove(request);
-			}
-		}
-		Bitmap bitmap = loadCache(url, localPath);
-		if (bitmap != null) {
-			if (updateBackground) {
-				view.setBackgroundDrawable(new BitmapDrawable(context.getResources(), bitmap));
-				autoRecycleViewBackgroundBitmap(view);
-			} else {
-				ImageView imageView = (ImageView)view;
-				imageView.setImageDrawable(new BitmapDrawable(context.getResources(), bitmap));
-				autoRecycleViewSourceBitmap(imageView);
-			}
-
-			return;
-		} else if (defaultResourceId > 0) {
-			if (updateBackground) {
-				view.setBackgroundResource(defaultResourceId);
-			} else {
-				ImageView imageView = (ImageView)view;
-				imageView.setImageResource(defaultResourceId);
-			}
-		}
-		request = new KKImageRequest(context, url, localPath, onReceiveHttpHeaderListener, view, updateBackground, cipher, saveToLocal);
-		workingList.add(request);
-		fetchList.put(view, request);
-		startFetch();
-	}
-
-	private void startFetch() {
-		if (workingCount < MAX_WORKING_COUNT) {
-			for (KKImageRequest request : workingList) {
-				if (request.getStatus() == UserTask.Status.PENDING) {
-					request.execute(imageRequestListener);
-					workingCount++;
-				}
-				if (workingCount >= MAX_WORKING_COUNT) {
-					break;
-				}
-			}
-		}
-	}
-}
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageManager
+ */
+package com.kkbox.toolkit.image;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import com.kkbox.toolkit.R;
+import com.kkbox.toolkit.internal.image.KKImageBitmapPool;
+import com.kkbox.toolkit.internal.image.KKImageBitmapReferences;
+import com.kkbox.toolkit.internal.image.KKImageDecoder;
+import com.kkbox.toolkit.internal.image.KKImageDiskCache;
+import com.kkbox.toolkit.internal.image.KKImageHttpClient;
+import com.kkbox.toolkit.internal.image.KKImageMemoryCache;
+import com.kkbox.toolkit.internal.image.KKImageNegativeCache;
+import com.kkbox.toolkit.internal.image.KKImageRequest;
+import com.kkbox.toolkit.internal.image.KKImageRequestListener;
+import com.kkbox.toolkit.internal.image.KKImageRequestQueue;
+import com.kkbox.toolkit.internal.image.KKImageStages;
+import com.kkbox.toolkit.internal.image.KKImageTileRequest;
+import com.kkbox.toolkit.utils.KKDebug;
+import com.kkbox.toolkit.utils.UserTask;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+
+public class KKImageManager {
+	public class ActionType {
+		public static final int DOWNLOAD = 0;
+		public static final int CALL_LISTENER = 1;
+		public static final int UPDATE_VIEW_BACKGROUND = 2;
+		public static final int UPDATE_VIEW_SOURCE = 3;
+		public static final int PREFETCH = 4;
+		public static final int LOAD_TILES = 5;
+	}
+
+	public class Priority {
+		public static final int LOW = 0;
+		public static final int NORMAL = 1;
+		public static final int HIGH = 2;
+	}
+
+	// fetches running in all managers together, the shared HTTP client has as many connections
+	private static final int MAX_WORKING_COUNT = 10;
+	// prefetches never hold more than this many of the MAX_WORKING_COUNT slots
+	private static final int MAX_PREFETCH_COUNT = 2;
+	private static final long DEFAULT_PREFETCH_BYTE_BUDGET = 4 * 1024 * 1024;
+	// the byte budget is spent anew in every window, so look-ahead keeps working on long lists
+	private static final long PREFETCH_BUDGET_WINDOW = 60 * 1000;
+	private static final int MEMORY_CACHE_DIVIDER = 8;
+	private static final int BITMAP_POOL_DIVIDER = 16;
+	private static KKImageMemoryCache memoryCache;
+	private static KKImageBitmapPool bitmapPool;
+	private static final KKImageHttpClient httpClient = new KKImageHttpClient(MAX_WORKING_COUNT);
+	private static final KKImageNegativeCache negativeCache = new KKImageNegativeCache();
+	private static final AtomicInteger runningCount = new AtomicInteger();
+	// every live manager, so requests can be cancelled by owner without knowing which manager started them
+	private static final WeakHashMap<KKImageManager, Boolean> managers = new WeakHashMap<KKImageManager, Boolean>();
+	// e.g. flinging lists; image work other than memory cache hits waits until none is left
+	private static final WeakHashMap<Object, Boolean> pausingSources = new WeakHashMap<Object, Boolean>();
+
+	private final WeakHashMap<KKImageRequest, Boolean> ownedRequests = new WeakHashMap<KKImageRequest, Boolean>();
+	// before API 14 View.setTag(int, Object) keeps tags in a static map, where a request reaching its view through this
+	// manager would keep the view alive for good; this map goes away with the manager instead
+	private final WeakHashMap<View, KKImageRequest> legacyViewRequests = new WeakHashMap<View, KKImageRequest>();
+	private final KKImageRequestQueue pendingQueue = new KKImageRequestQueue();
+	private final HashSet<KKImageRequest> runningList = new HashSet<KKImageRequest>();
+	private final HashMap<String, KKImageRequest> sharedFetchList = new HashMap<String, KKImageRequest>();
+	private final LinkedHashMap<String, KKImageRequest> prefetchList = new LinkedHashMap<String, KKImageRequest>();
+	private final ArrayList<KKImageRequest> deferredRequests = new ArrayList<KKImageRequest>();
+	private final HashMap<KKImageTileListener, KKImageTileRequest> tileRequests = new HashMap<KKImageTileListener, KKImageTileRequest>();
+	// downloads of images whose tiles are waiting for them, by url
+	private final HashMap<String, KKImageRequest> tileFetchList = new HashMap<String, KKImageRequest>();
+	private int runningPrefetchCount = 0;
+	private long prefetchByteBudget = DEFAULT_PREFETCH_BYTE_BUDGET;
+	private long prefetchedBytes = 0;
+	private long prefetchWindowStart = 0;
+	private Context context;
+	private Cipher cipher = null;
+	private boolean exactScale = false;
+	private KKImageDecodeOptions decodeOptions = KKImageDecodeOptions.AUTOMATIC;
+	private final Object owner;
+
+	protected KKImageRequestListener imageRequestListener = new KKImageRequestListener() {
+		@Override
+		public void onComplete(KKImageRequest request, Bitmap bitmap) {
+			negativeCache.recordSuccess(request.getUrl());
+			KKImageBitmapReferences.register(bitmap);
+			// held until it is delivered, so the memory cache cannot give it back to the pool in between
+			KKImageBitmapReferences.retain(bitmap);
+			if (memoryCache != null && bitmap != null) {
+				memoryCache.put(request.getKey(), bitmap);
+			}
+			removeSharedFetch(request);
+			if (!request.isDetached()) {
+				deliverBitmap(request, bitmap);
+			}
+			for (KKImageRequest waiter : request.getWaiters()) {
+				deliverBitmap(waiter, bitmap);
+			}
+			KKImageBitmapReferences.release(bitmap);
+			if (request.getActionType() == ActionType.LOAD_TILES) {
+				finishTileFetch(request, true);
+			}
+			untrackRequest(request);
+			finishRequest(request);
+		}
+
+		@Override
+		public void onCacheMiss(KKImageRequest request) {
+			pendingQueue.add(request);
+			startFetch();
+		}
+
+		@Override
+		public void onFetchFinished(KKImageRequest request) {
+			// the bitmap is still being decoded, but the request no longer holds a network slot
+			finishRequest(request);
+		}
+
+		@Override
+		public void onCancelled(KKImageRequest request) {
+			pendingQueue.remove(request);
+			removeSharedFetch(request);
+			untrackRequest(request);
+			finishRequest(request);
+		}
+
+		@Override
+		public void onNetworkError(KKImageRequest request) {
+			if (request.isBadContent()) {
+				negativeCache.recordFailure(request.getUrl());
+			}
+			removeSharedFetch(request);
+			clearViewRequest(request);
+			for (KKImageRequest waiter : request.getWaiters()) {
+				clearViewRequest(waiter);
+			}
+			if (request.getActionType() == ActionType.LOAD_TILES) {
+				finishTileFetch(request, false);
+			}
+			untrackRequest(request);
+			finishRequest(request);
+		}
+	};
+
+	/**
+	 * Cancels the requests of every KKImageManager that were started for owner, closing their connections.
+	 */
+	public static void cancelRequests(Object owner) {
+		for (KKImageManager manager : new ArrayList<KKImageManager>(managers.keySet())) {
+			manager.cancelOwnedRequests(owner);
+		}
+	}
+
+	/**
+	 * Moves the requests started for owner behind all others until restoreRequests(owner) is called.
+	 */
+	public static void deprioritizeRequests(Object owner) {
+		for (KKImageManager manager : new ArrayList<KKImageManager>(managers.keySet())) {
+			manager.setOwnedRequestsDeprioritized(owner, true);
+		}
+	}
+
+	public static void restoreRequests(Object owner) {
+		for (KKImageManager manager : new ArrayList<KKImageManager>(managers.keySet())) {
+			manager.setOwnedRequestsDeprioritized(owner, false);
+		}
+	}
+
+	/**
+	 * Until resumeRequests(source) is called, images are only served from the memory cache. New requests wait without
+	 * touching the disk cache and no further downloads are started. KKListView pauses while it is flinging.
+	 */
+	public static void pauseRequests(Object source) {
+		pausingSources.put(source, true);
+	}
+
+	/**
+	 * Starts the requests that waited during the pause, the newest first, once no other source holds a pause.
+	 */
+	public static void resumeRequests(Object source) {
+		if (pausingSources.remove(source) == null || !pausingSources.isEmpty()) { return; }
+		for (KKImageManager manager : new ArrayList<KKImageManager>(managers.keySet())) {
+			manager.startDeferredRequests();
+		}
+	}
+
+	public static boolean isPaused() {
+		return !pausingSources.isEmpty();
+	}
+
+	/**
+	 * Packed images have no file of their own, the returned path only exists for images stored as a single file. Images
+	 * with the same content share that file. Must not be called on the UI thread.
+	 */
+	public static String getTempImagePath(Context context, String url) {
+		KKImageDiskCache diskCache = KKImageDiskCache.getInstance(context);
+		String key = KKImageDiskCache.getKey(url);
+		File file = diskCache.get(key);
+		return (file != null ? file : diskCache.getFile(key)).getAbsolutePath();
+	}
+
+	/**
+	 * Reports how many bytes the disk cache saves by storing images served under several urls once, to help sizing it
+	 * with setDiskCacheMaxSize(). Must not be called on the UI thread.
+	 */
+	public static KKImageDiskCache.DedupReport getDiskCacheDedupReport(Context context) {
+		return KKImageDiskCache.getInstance(context).getDedupReport();
+	}
+
+	/**
+	 * The cached image is removed in the background, a request started right after this may still get it.
+	 */
+	public static void removeCacheIfExists(Context context, String url) {
+		KKImageDiskCache.getInstance(context).removeInBackground(KKImageDiskCache.getKey(url));
+	}
+
+	/**
+	 * Holds a reference to the background bitmap of view and releases the one it showed before, which is recycled before
+	 * API 11 unless something else, like the memory cache or another view, still holds it.
+	 */
+	public static void autoRecycleViewBackgroundBitmap(View view) {
+		bindBitmap(view, R.id.image_background_bitmap, getViewBitmap(view, true));
+	}
+
+	public static void autoRecycleViewSourceBitmap(ImageView view) {
+		bindBitmap(view, R.id.image_source_bitmap, getViewBitmap(view, false));
+	}
+
+	/**
+	 * Releases the bitmaps held for view, e.g. before a temporary view is thrown away.
+	 */
+	public static void releaseViewBitmaps(View view) {
+		bindBitmap(view, R.id.image_background_bitmap, null);
+		bindBitmap(view, R.id.image_source_bitmap, null);
+	}
+
+	/**
+	 * The bitmaps handed to autoRecycle*Bitmap() are remembered on the views themselves and go away with them, so there is
+	 * nothing left to clean up here.
+	 */
+	public static void gc() {}
+
+	public static KKImageMemoryCache getMemoryCache() {
+		return memoryCache;
+	}
+
+	public static KKImageHttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	public static void setHttpTimeouts(int connectionTimeout, int socketTimeout) {
+		httpClient.setTimeouts(connectionTimeout, socketTimeout);
+	}
+
+	/**
+	 * Lets urls whose images turned out to be broken be requested again right away, instead of after their backoff.
+	 */
+	public static void clearFailedUrls() {
+		negativeCache.clear();
+	}
+
+	public static KKImageBitmapPool getBitmapPool() {
+		return bitmapPool;
+	}
+
+	/**
+	 * Takes a snapshot of cache hits, transfer and decode times, queue waits and the requests of this manager. Cheap
+	 * enough to sample periodically.
+	 */
+	public KKImageStats getStats() {
+		long memoryHits = 0;
+		long memoryMisses = 0;
+		long memoryEvictions = 0;
+		if (memoryCache != null) {
+			memoryHits = memoryCache.getHitCount();
+			memoryMisses = memoryCache.getMissCount();
+			memoryEvictions = memoryCache.getEvictionCount();
+		}
+		return new KKImageStats(memoryHits, memoryMisses, memoryEvictions, KKImageDiskCache.getInstance(context).getEvictionCount(),
+				runningList.size(), pendingQueue.size(), prefetchList.size());
+	}
+
+	public void dumpStats() {
+		KKDebug.i("KKImageManager", getStats());
+	}
+
+	public static void trimMemory(int level) {
+		if (memoryCache != null) {
+			memoryCache.trimMemory(level);
+		}
+		if (bitmapPool != null && level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			bitmapPool.clear();
+		}
+	}
+
+	public KKImageManager(Context context, Cipher localCipher) {
+		this(context, localCipher, null);
+	}
+
+	/**
+	 * Every request of this manager belongs to owner, e.g. a KKFragment, so they can be cancelled or deprioritized together
+	 * through cancelRequests(owner) and deprioritizeRequests(owner). Screens that come and go together with their images
+	 * should each have a manager of their own, KKFragment.createImageManager() creates one for the fragment.
+	 */
+	public KKImageManager(Context context, Cipher localCipher, Object owner) {
+		this.context = context;
+		this.cipher = localCipher;
+		this.owner = owner;
+		managers.put(this, true);
+		if (memoryCache == null) {
+			// bitmaps can only be decoded into reused memory from API 11
+			if (Build.VERSION.SDK_INT >= 11) {
+				bitmapPool = new KKImageBitmapPool(Runtime.getRuntime().maxMemory() / BITMAP_POOL_DIVIDER);
+			}
+			// the cache is one more holder of its bitmaps, they are only reused or recycled once no view shows them either
+			memoryCache = new KKImageMemoryCache(Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVIDER) {
+				@Override
+				protected void onBitmapAdded(Bitmap bitmap) {
+					KKImageBitmapReferences.retain(bitmap);
+				}
+
+				@Override
+				protected void onBitmapRemoved(Bitmap bitmap) {
+					KKImageBitmapReferences.release(bitmap);
+				}
+			};
+		}
+		KKImageDiskCache.getInstance(context).trimInBackground();
+	}
+
+	public void setDiskCacheMaxSize(long maxSize) {
+		KKImageDiskCache.getInstance(context).setMaxSize(maxSize);
+	}
+
+	/**
+	 * Images of at most the given size are stored in shared pack files instead of one file each. 0 disables packing.
+	 */
+	public void setImagePackThreshold(int bytes) {
+		KKImageDiskCache.getInstance(context).setPackThreshold(bytes);
+	}
+
+	public void downloadBitmap(String url, String localPath, KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener) {
+		downloadBitmap(url, localPath, onReceiveHttpHeaderListener, Priority.NORMAL);
+	}
+
+	public void downloadBitmap(String url, String localPath, KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener, int priority) {
+		KKImageRequest request = new KKImageRequest(context, url, localPath, onReceiveHttpHeaderListener, cipher);
+		request.setPriority(priority);
+		trackRequest(request);
+		pendingQueue.add(request);
+		startFetch();
+	}
+
+	public KKImageRequest loadBitmap(KKImageListener listener, String url, String localPath) {
+		return loadBitmap(listener, url, localPath, 0, 0, Priority.NORMAL);
+	}
+
+	public KKImageRequest loadBitmap(KKImageListener listener, String url, String localPath, int width, int height) {
+		return loadBitmap(listener, url, localPath, width, height, Priority.NORMAL);
+	}
+
+	public KKImageRequest loadBitmap(KKImageListener listener, String url, String localPath, int width, int height, int priority) {
+		return loadBitmap(listener, url, localPath, width, height, priority, decodeOptions);
+	}
+
+	public KKImageRequest loadBitmap(KKImageListener listener, String url, String localPath, int width, int height, int priority,
+			KKImageDecodeOptions decodeOptions) {
+		KKImageRequest request = new KKImageRequest(context, url, localPath, listener, cipher);
+		request.setTargetSize(width, height, exactScale);
+		request.setDecodeOptions(decodeOptions);
+		request.setPriority(priority);
+		trackRequest(request);
+		startRequest(request);
+		return request;
+	}
+
+	/**
+	 * Fetches urls into the disk cache ahead of time, behind every other request and within the prefetch byte budget of the
+	 * current minute.
+	 */
+	public void prefetch(List<String> urls) {
+		prefetch(urls, 0, 0, false);
+	}
+
+	/**
+	 * Like prefetch(urls), and if warmMemory is set also decodes the bitmaps for a width x height target into the memory cache.
+	 */
+	public void prefetch(List<String> urls, int width, int height, boolean warmMemory) {
+		warmMemory = warmMemory && memoryCache != null;
+		for (String url : urls) {
+			if (isPrefetchBudgetSpent()) { break; }
+			if (url == null || prefetchList.containsKey(url) || negativeCache.isBlocked(url)
+					|| (warmMemory && getMemoryCacheBitmap(url, width, height, decodeOptions) != null)) {
+				continue;
+			}
+			KKImageRequest request = new KKImageRequest(context, url, cipher, warmMemory);
+			request.setTargetSize(width, height, exactScale);
+			request.setDecodeOptions(decodeOptions);
+			request.setPriority(Priority.LOW);
+			trackRequest(request);
+			prefetchList.put(url, request);
+		}
+		startFetch();
+	}
+
+	/**
+	 * Cancels all prefetches and starts the byte budget over.
+	 */
+	public void cancelPrefetch() {
+		prefetchList.clear();
+		for (KKImageRequest request : new ArrayList<KKImageRequest>(runningList)) {
+			if (request.getActionType() == ActionType.PREFETCH) {
+				request.cancel();
+			}
+		}
+		runningPrefetchCount = 0;
+		prefetchedBytes = 0;
+		prefetchWindowStart = KKImageStages.now();
+		startAllFetches();
+	}
+
+	/**
+	 * Decodes only the tiles of url that intersect viewport, given in image pixels, subsampled for the image being shown
+	 * at scale. Meant for images too large to be decoded whole. Tiles are kept in the memory cache, and the image is
+	 * downloaded into the disk cache first if needed. A new call for the same listener replaces its previous viewport.
+	 */
+	public void loadTiles(KKImageTileListener listener, final String url, final String localPath, Rect viewport, float scale) {
+		cancelTiles(listener);
+		if (Build.VERSION.SDK_INT < 10) {
+			// BitmapRegionDecoder is only available from API 10
+			listener.onTilesUnavailable();
+			return;
+		}
+		final KKImageTileRequest tileRequest = new KKImageTileRequest(url, viewport, scale, decodeOptions, listener);
+		if (tileRequest.deliverCachedTiles(memoryCache)) { return; }
+		Iterator<KKImageTileRequest> iterator = tileRequests.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isFinished()) {
+				iterator.remove();
+			}
+		}
+		tileRequests.put(listener, tileRequest);
+		// the disk cache lookup may have to wait for the cache to load, so it is done on the disk stage
+		tileRequest.decodeIfCached(KKImageDiskCache.getInstance(context), KKImageDiskCache.getKey(url), new Runnable() {
+			@Override
+			public void run() {
+				startTileFetch(tileRequest, url, localPath);
+			}
+		});
+	}
+
+	public void cancelTiles(KKImageTileListener listener) {
+		KKImageTileRequest tileRequest = tileRequests.remove(listener);
+		if (tileRequest != null) {
+			tileRequest.cancel();
+		}
+	}
+
+	/**
+	 * How many bytes prefetches may download per minute. Defaults to 4 MB.
+	 */
+	public void setPrefetchByteBudget(long bytes) {
+		prefetchByteBudget = bytes;
+	}
+
+	public void setExactScaleEnabled(boolean enabled) {
+		exactScale = enabled;
+	}
+
+	/**
+	 * The options every request of this manager is decoded with unless it is given its own. Defaults to
+	 * KKImageDecodeOptions.AUTOMATIC.
+	 */
+	public void setDecodeOptions(KKImageDecodeOptions decodeOptions) {
+		this.decodeOptions = decodeOptions;
+	}
+
+	public void updateViewSource(ImageView view, String url, String localPath, int defaultResourceId) {
+		updateView(view, url, localPath, defaultResourceId, false, false, null, getTargetWidth(view), getTargetHeight(view),
+				decodeOptions);
+	}
+
+	public void updateViewSource(ImageView view, String url, String localPath, int defaultResourceId, int width, int height) {
+		updateView(view, url, localPath, defaultResourceId, false, false, null, width, height, decodeOptions);
+	}
+
+	public void updateViewSource(ImageView view, String url, String localPath, int defaultResourceId, int width, int height,
+			KKImageDecodeOptions decodeOptions) {
+		updateView(view, url, localPath, defaultResourceId, false, false, null, width, height, decodeOptions);
+	}
+
+	public void updateViewSourceAndSave(ImageView view, String url, String localPath, int defaultResourceId,
+			KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener) {
+		updateView(view, url, localPath, defaultResourceId, false, true, onReceiveHttpHeaderListener, getTargetWidth(view),
+				getTargetHeight(view), decodeOptions);
+	}
+
+	public void updateViewBackground(View view, String url, String localPath, int defaultResourceId) {
+		updateView(view, url, localPath, defaultResourceId, true, false, null, getTargetWidth(view), getTargetHeight(view),
+				decodeOptions);
+	}
+
+	public void updateViewBackground(View view, String url, String localPath, int defaultResourceId, int width, int height) {
+		updateView(view, url, localPath, defaultResourceId, true, false, null, width, height, decodeOptions);
+	}
+
+	public void updateViewBackground(View view, String url, String localPath, int defaultResourceId, int width, int height,
+			KKImageDecodeOptions decodeOptions) {
+		updateView(view, url, localPath, defaultResourceId, true, false, null, width, height, decodeOptions);
+	}
+
+	public void updateViewBackgroundAndSave(View view, String url, String localPath, int defaultResourceId,
+			KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener) {
+		updateView(view, url, localPath, defaultResourceId, true, true, onReceiveHttpHeaderListener, getTargetWidth(view),
+				getTargetHeight(view), decodeOptions);
+	}
+
+	public Bitmap loadCache(String url, String localPath) {
+		Bitmap bitmap = loadMemoryCache(url);
+		if (bitmap != null) { return bitmap; }
+		final KKImageDiskCache diskCache = KKImageDiskCache.getInstance(context);
+		final String cacheKey = KKImageDiskCache.getKey(url);
+		final File cacheFile = diskCache.get(cacheKey);
+		final byte[] packedData = cacheFile == null ? diskCache.getPackedData(cacheKey) : null;
+		if (cacheFile != null || packedData != null) {
+			if (cacheFile != null) {
+				bitmap = KKImageDecoder.decodeFile(cacheFile.getAbsolutePath(), 0, 0, false, null, decodeOptions);
+			} else {
+				bitmap = KKImageDecoder.decodeByteArray(packedData, 0, 0, false, null, decodeOptions);
+			}
+			KKImageBitmapReferences.markEscaped(bitmap);
+			if (memoryCache != null && bitmap != null) {
+				memoryCache.put(KKImageMemoryCache.getKey(url, 0, 0, decodeOptions), bitmap);
+			}
+			return bitmap;
+		}
+		return null;
+	}
+
+	public Bitmap loadMemoryCache(String url) {
+		return loadMemoryCache(url, 0, 0);
+	}
+
+	public Bitmap loadMemoryCache(String url, int width, int height) {
+		return loadMemoryCache(url, width, height, decodeOptions);
+	}
+
+	/**
+	 * The returned bitmap is never reused or recycled by the image pipeline, the caller may keep it for as long as it likes.
+	 */
+	public Bitmap loadMemoryCache(String url, int width, int height, KKImageDecodeOptions decodeOptions) {
+		Bitmap bitmap = getMemoryCacheBitmap(url, width, height, decodeOptions);
+		KKImageBitmapReferences.markEscaped(bitmap);
+		return bitmap;
+	}
+
+	@Override
+	public void finalize() {
+		for (KKImageRequest request : pendingQueue.toArray()) {
+			request.cancel();
+		}
+		// cancelling a running request gives its slot back and takes it off runningList
+		for (KKImageRequest request : new ArrayList<KKImageRequest>(runningList)) {
+			request.cancel();
+		}
+		for (KKImageRequest request : new ArrayList<KKImageRequest>(deferredRequests)) {
+			request.cancel();
+		}
+		for (KKImageTileRequest tileRequest : tileRequests.values()) {
+			tileRequest.cancel();
+		}
+		prefetchList.clear();
+	}
+
+	private void updateView(View view, String url, String localPath, int defaultResourceId, boolean updateBackground, boolean saveToLocal,
+			KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener, int width, int height, KKImageDecodeOptions decodeOptions) {
+		// the pending request of a view is kept on the view, so it is released together with the view
+		KKImageRequest request = getViewRequest(view);
+		if (request != null) {
+			if (request.getUrl().equals(url) && !request.isAborted()) {
+				return;
+			}
+			// the view may show an image from the memory cache below, it must not look like it still waits for this one
+			setViewRequest(view, null);
+			cancelRequest(request);
+		}
+		Bitmap bitmap = getMemoryCacheBitmap(url, width, height, decodeOptions);
+		if (bitmap != null) {
+			setViewBitmap(view, bitmap, updateBackground);
+			return;
+		} else if (defaultResourceId > 0) {
+			if (updateBackground) {
+				view.setBackgroundResource(defaultResourceId);
+			} else {
+				ImageView imageView = (ImageView)view;
+				imageView.setImageResource(defaultResourceId);
+			}
+			bindBitmap(view, updateBackground ? R.id.image_background_bitmap : R.id.image_source_bitmap, null);
+		}
+		request = new KKImageRequest(context, url, localPath, onReceiveHttpHeaderListener, view, updateBackground, cipher, saveToLocal);
+		request.setTargetSize(width, height, exactScale);
+		request.setDecodeOptions(decodeOptions);
+		trackRequest(request);
+		setViewRequest(view, request);
+		startRequest(request);
+	}
+
+	private static Bitmap getMemoryCacheBitmap(String url, int width, int height, KKImageDecodeOptions decodeOptions) {
+		if (memoryCache == null) { return null; }
+		return memoryCache.get(KKImageMemoryCache.getKey(url, width, height, decodeOptions));
+	}
+
+	private static int getTargetWidth(View view) {
+		if (view.getWidth() > 0) { return view.getWidth(); }
+		ViewGroup.LayoutParams params = view.getLayoutParams();
+		return params != null && params.width > 0 ? params.width : 0;
+	}
+
+	private static int getTargetHeight(View view) {
+		if (view.getHeight() > 0) { return view.getHeight(); }
+		ViewGroup.LayoutParams params = view.getLayoutParams();
+		return params != null && params.height > 0 ? params.height : 0;
+	}
+
+	private void startRequest(KKImageRequest request) {
+		if (negativeCache.isBlocked(request.getUrl())) {
+			// the image was broken the last time, a view keeps its default resource until the backoff is over
+			clearViewRequest(request);
+			untrackRequest(request);
+			return;
+		}
+		if (isPaused()) {
+			deferredRequests.add(request);
+			return;
+		}
+		// the request warms the disk cache itself, a queued prefetch of the same url is no longer needed
+		prefetchList.remove(request.getUrl());
+		KKImageRequest leader = sharedFetchList.get(request.getKey());
+		if (leader != null && !leader.isAborted() && leader.canShareFetchWith(request)) {
+			leader.addWaiter(request);
+			updatePriority(leader);
+			return;
+		}
+		if (leader == null || leader.isAborted()) {
+			sharedFetchList.put(request.getKey(), request);
+		}
+		request.loadFromCache(imageRequestListener);
+	}
+
+	private void cancelRequest(KKImageRequest request) {
+		KKImageRequest leader = request.getLeader();
+		KKImageRequest task = leader != null ? leader : request;
+		boolean wasCancelled = task.isAborted();
+		request.cancel();
+		if (!wasCancelled && task.isAborted()) {
+			deferredRequests.remove(task);
+			pendingQueue.remove(task);
+			removeRunningRequest(task);
+			removeSharedFetch(task);
+			startAllFetches();
+		} else {
+			updatePriority(task);
+		}
+	}
+
+	private void updatePriority(KKImageRequest request) {
+		// a shared fetch is only as urgent as whoever still waits for it; a detached one whose view was rebound drops to LOW
+		int priority = request.isDetached() || request.isDeprioritized() ? Priority.LOW : request.getPriority();
+		for (KKImageRequest waiter : request.getWaiters()) {
+			if (!waiter.isDeprioritized()) {
+				priority = Math.max(priority, waiter.getPriority());
+			}
+		}
+		pendingQueue.setPriority(request, priority);
+	}
+
+	private void trackRequest(KKImageRequest request) {
+		if (owner == null) { return; }
+		request.setOwner(owner);
+		ownedRequests.put(request, true);
+	}
+
+	private void untrackRequest(KKImageRequest request) {
+		ownedRequests.remove(request);
+		for (KKImageRequest waiter : request.getWaiters()) {
+			ownedRequests.remove(waiter);
+		}
+	}
+
+	private void cancelOwnedRequests(Object owner) {
+		for (KKImageRequest request : new ArrayList<KKImageRequest>(ownedRequests.keySet())) {
+			if (request.getOwner() != owner) {
+				continue;
+			}
+			ownedRequests.remove(request);
+			clearViewRequest(request);
+			if (request.getActionType() == ActionType.PREFETCH) {
+				if (prefetchList.get(request.getUrl()) == request) {
+					prefetchList.remove(request.getUrl());
+				}
+			}
+			cancelRequest(request);
+		}
+	}
+
+	private void setOwnedRequestsDeprioritized(Object owner, boolean deprioritized) {
+		for (KKImageRequest request : ownedRequests.keySet()) {
+			if (request.getOwner() != owner || request.isDeprioritized() == deprioritized) {
+				continue;
+			}
+			request.setDeprioritized(deprioritized);
+			updatePriority(request.getLeader() != null ? request.getLeader() : request);
+		}
+	}
+
+	private void startTileFetch(KKImageTileRequest tileRequest, String url, String localPath) {
+		if (negativeCache.isBlocked(url)) {
+			tileRequest.notifyUnavailable();
+			return;
+		}
+		KKImageRequest request = tileFetchList.get(url);
+		if (request != null && !request.isAborted()) { return; }
+		request = new KKImageRequest(context, url, localPath, cipher);
+		trackRequest(request);
+		tileFetchList.put(url, request);
+		pendingQueue.add(request);
+		startFetch();
+	}
+
+	private void finishTileFetch(KKImageRequest request, boolean succeeded) {
+		if (tileFetchList.get(request.getUrl()) != request) { return; }
+		tileFetchList.remove(request.getUrl());
+		KKImageDiskCache diskCache = KKImageDiskCache.getInstance(context);
+		String cacheKey = KKImageDiskCache.getKey(request.getUrl());
+		Iterator<KKImageTileRequest> iterator = tileRequests.values().iterator();
+		while (iterator.hasNext()) {
+			KKImageTileRequest tileRequest = iterator.next();
+			if (!tileRequest.getUrl().equals(request.getUrl())) {
+				continue;
+			}
+			if (succeeded) {
+				tileRequest.decode(diskCache, cacheKey);
+			} else {
+				tileRequest.notifyUnavailable();
+				iterator.remove();
+			}
+		}
+	}
+
+	private void removeSharedFetch(KKImageRequest request) {
+		if (sharedFetchList.get(request.getKey()) == request) {
+			sharedFetchList.remove(request.getKey());
+		}
+	}
+
+	private void clearViewRequest(KKImageRequest request) {
+		View view = request.getView();
+		if (view != null && getViewRequest(view) == request) {
+			setViewRequest(view, null);
+		}
+	}
+
+	private KKImageRequest getViewRequest(View view) {
+		if (Build.VERSION.SDK_INT < 14) {
+			return legacyViewRequests.get(view);
+		}
+		return (KKImageRequest)view.getTag(R.id.image_request);
+	}
+
+	private void setViewRequest(View view, KKImageRequest request) {
+		if (Build.VERSION.SDK_INT >= 14) {
+			view.setTag(R.id.image_request, request);
+		} else if (request != null) {
+			legacyViewRequests.put(view, request);
+		} else {
+			legacyViewRequests.remove(view);
+		}
+	}
+
+	private void deliverBitmap(KKImageRequest request, Bitmap bitmap) {
+		if (request.getActionType() == ActionType.CALL_LISTENER) {
+			if (request.getImageCacheListener() != null) {
+				KKImageBitmapReferences.markEscaped(bitmap);
+				request.getImageCacheListener().onReceiveBitmap(bitmap);
+			}
+		} else if (request.getView() == null) {
+			// the view was garbage collected while its image was loading
+			return;
+		} else if (request.getActionType() == ActionType.UPDATE_VIEW_BACKGROUND) {
+			setViewBitmap(request.getView(), bitmap, true);
+			clearViewRequest(request);
+		} else if (request.getActionType() == ActionType.UPDATE_VIEW_SOURCE) {
+			setViewBitmap(request.getView(), bitmap, false);
+			clearViewRequest(request);
+		}
+	}
+
+	private void setViewBitmap(View view, Bitmap bitmap, boolean updateBackground) {
+		if (updateBackground) {
+			view.setBackgroundDrawable(new BitmapDrawable(context.getResources(), bitmap));
+			autoRecycleViewBackgroundBitmap(view);
+		} else {
+			ImageView imageView = (ImageView)view;
+			imageView.setImageDrawable(new BitmapDrawable(context.getResources(), bitmap));
+			autoRecycleViewSourceBitmap(imageView);
+		}
+	}
+
+	private static void bindBitmap(View view, int key, Bitmap bitmap) {
+		// the bitmap a view holds is kept in a tag, so rebinding the view finds it without a lookup table
+		Bitmap previousBitmap = (Bitmap)view.getTag(key);
+		if (previousBitmap == bitmap) { return; }
+		KKImageBitmapReferences.retain(bitmap);
+		view.setTag(key, bitmap);
+		KKImageBitmapReferences.release(previousBitmap);
+	}
+
+	private static Bitmap getViewBitmap(View view, boolean background) {
+		Drawable drawable = background ? view.getBackground() : ((ImageView)view).getDrawable();
+		return drawable instanceof BitmapDrawable ? ((BitmapDrawable)drawable).getBitmap() : null;
+	}
+
+	private void finishRequest(KKImageRequest request) {
+		if (!removeRunningRequest(request)) { return; }
+		if (request.getActionType() == ActionType.PREFETCH) {
+			runningPrefetchCount--;
+			prefetchedBytes += request.getDownloadedLength();
+			if (isPrefetchBudgetSpent()) {
+				prefetchList.clear();
+			}
+		}
+		startAllFetches();
+	}
+
+	private boolean isPrefetchBudgetSpent() {
+		long now = KKImageStages.now();
+		if (now - prefetchWindowStart >= PREFETCH_BUDGET_WINDOW) {
+			prefetchWindowStart = now;
+			prefetchedBytes = 0;
+		}
+		return prefetchedBytes >= prefetchByteBudget;
+	}
+
+	private void addRunningRequest(KKImageRequest request) {
+		runningList.add(request);
+		runningCount.incrementAndGet();
+	}
+
+	private boolean removeRunningRequest(KKImageRequest request) {
+		if (!runningList.remove(request)) { return false; }
+		runningCount.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * A freed slot may be taken by a request of any manager.
+	 */
+	private static void startAllFetches() {
+		for (KKImageManager manager : new ArrayList<KKImageManager>(managers.keySet())) {
+			manager.startFetch();
+		}
+	}
+
+	private void startDeferredRequests() {
+		// the rows a list settled on were bound last, so they start first
+		ArrayList<KKImageRequest> requests = new ArrayList<KKImageRequest>(deferredRequests);
+		deferredRequests.clear();
+		for (int i = requests.size() - 1; i >= 0; i--) {
+			if (!requests.get(i).isAborted()) {
+				startRequest(requests.get(i));
+			}
+		}
+		startFetch();
+	}
+
+	private void startFetch() {
+		if (isPaused()) { return; }
+		while (runningCount.get() < MAX_WORKING_COUNT && !pendingQueue.isEmpty()) {
+			KKImageRequest request = pendingQueue.poll();
+			if (request.isAborted() || request.getStatus() != UserTask.Status.PENDING) {
+				continue;
+			}
+			addRunningRequest(request);
+			request.executeOnExecutor(KKImageStages.getNetworkExecutor(), imageRequestListener);
+		}
+		// prefetches only get slots nothing else is waiting for
+		Iterator<KKImageRequest> iterator = prefetchList.values().iterator();
+		while (runningCount.get() < MAX_WORKING_COUNT && runningPrefetchCount < MAX_PREFETCH_COUNT && pendingQueue.isEmpty()
+				&& iterator.hasNext()) {
+			KKImageRequest request = iterator.next();
+			iterator.remove();
+			addRunningRequest(request);
+			runningPrefetchCount++;
+			request.executeOnExecutor(KKImageStages.getNetworkExecutor(), imageRequestListener);
+		}
+	}
+}
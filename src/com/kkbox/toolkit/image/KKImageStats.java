@@ -0,0 +1,121 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageStats
+ */
+package com.kkbox.toolkit.image;
+
+import com.kkbox.toolkit.internal.image.KKImageMetrics;
+import com.kkbox.toolkit.internal.image.KKImageStages;
+
+/**
+ * A snapshot of the image pipeline taken by KKImageManager.getStats(). Counters are totals since the process started,
+ * except for the request counts, which are those of the KKImageManager the snapshot was taken from.
+ */
+public class KKImageStats {
+	/**
+	 * The number of buckets in decodeTimes and downloadTimes. Bucket 0 holds durations below 1 ms, bucket i durations from
+	 * 2^(i-1) up to 2^i ms, and the last bucket everything longer.
+	 */
+	public static final int TIME_BUCKET_COUNT = KKImageMetrics.Histogram.BUCKET_COUNT;
+
+	/**
+	 * Queue wait and run times of one stage in milliseconds, totals since the process started.
+	 */
+	public static class StageTiming {
+		public final String stage;
+		public final long count;
+		public final long totalWaitTime;
+		public final long totalRunTime;
+		public final long maxRunTime;
+
+		private StageTiming(KKImageStages.Timing timing) {
+			stage = timing.stage;
+			count = timing.count;
+			totalWaitTime = timing.totalWaitTime;
+			totalRunTime = timing.totalRunTime;
+			maxRunTime = timing.maxRunTime;
+		}
+
+		@Override
+		public String toString() {
+			long averageWaitTime = count > 0 ? totalWaitTime / count : 0;
+			long averageRunTime = count > 0 ? totalRunTime / count : 0;
+			return stage + ": " + count + " tasks, wait " + averageWaitTime + " ms, run " + averageRunTime + " ms, max run " + maxRunTime
+					+ " ms";
+		}
+	}
+
+	public final long memoryHits;
+	public final long memoryMisses;
+	public final long diskHits;
+	public final long networkHits;
+	public final long downloadedBytes;
+	// counts per time bucket, see TIME_BUCKET_COUNT
+	public final long[] decodeTimes;
+	public final long[] downloadTimes;
+	// the network, disk and decode stages
+	public final StageTiming[] stageTimings;
+	public final int inFlightCount;
+	public final int pendingCount;
+	public final int pendingPrefetchCount;
+	public final long memoryEvictions;
+	public final long diskEvictions;
+
+	KKImageStats(long memoryHits, long memoryMisses, long memoryEvictions, long diskEvictions, int inFlightCount, int pendingCount,
+			int pendingPrefetchCount) {
+		this.memoryHits = memoryHits;
+		this.memoryMisses = memoryMisses;
+		this.memoryEvictions = memoryEvictions;
+		this.diskEvictions = diskEvictions;
+		this.inFlightCount = inFlightCount;
+		this.pendingCount = pendingCount;
+		this.pendingPrefetchCount = pendingPrefetchCount;
+		diskHits = KKImageMetrics.getDiskHitCount();
+		networkHits = KKImageMetrics.getNetworkHitCount();
+		downloadedBytes = KKImageMetrics.getDownloadedBytes();
+		decodeTimes = KKImageMetrics.getDecodeTimes().getCounts();
+		downloadTimes = KKImageMetrics.getDownloadTimes().getCounts();
+		KKImageStages.Timing[] timings = KKImageStages.getTimings();
+		stageTimings = new StageTiming[timings.length];
+		for (int i = 0; i < timings.length; i++) {
+			stageTimings[i] = new StageTiming(timings[i]);
+		}
+	}
+
+	/**
+	 * The upper limit in milliseconds of the durations in bucket index of decodeTimes and downloadTimes.
+	 */
+	public static long getTimeBucketLimit(int index) {
+		return KKImageMetrics.Histogram.getBucketLimit(index);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("hits: memory ").append(memoryHits).append(", disk ").append(diskHits).append(", network ").append(networkHits);
+		builder.append(", memory misses ").append(memoryMisses).append('\n');
+		builder.append("downloaded: ").append(downloadedBytes).append(" bytes\n");
+		builder.append("download times: ").append(KKImageMetrics.Histogram.format(downloadTimes)).append('\n');
+		builder.append("decode times: ").append(KKImageMetrics.Histogram.format(decodeTimes)).append('\n');
+		for (StageTiming timing : stageTimings) {
+			builder.append(timing).append('\n');
+		}
+		builder.append("requests: ").append(inFlightCount).append(" in flight, ").append(pendingCount).append(" pending, ");
+		builder.append(pendingPrefetchCount).append(" prefetches pending\n");
+		builder.append("evictions: memory ").append(memoryEvictions).append(", disk ").append(diskEvictions);
+		return builder.toString();
+	}
+}
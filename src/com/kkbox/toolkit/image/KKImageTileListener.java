@@ -0,0 +1,35 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageTileListener
+ */
+package com.kkbox.toolkit.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+public abstract class KKImageTileListener {
+	/**
+	 * region is the tile in image pixels and bitmap holds it subsampled by sampleSize. Tiles at the right and bottom edge
+	 * are cut off where the image ends, so their bitmaps cover less than region.
+	 */
+	public void onReceiveTile(Rect region, int sampleSize, Bitmap bitmap) {}
+
+	/**
+	 * Called instead of onReceiveTile() when no tiles can be decoded, because the image could not be downloaded, is
+	 * neither JPEG nor PNG, or the device is older than API 10.
+	 */
+	public void onTilesUnavailable() {}
+}
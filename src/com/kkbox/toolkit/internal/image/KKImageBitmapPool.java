@@ -0,0 +1,86 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageBitmapPool
+ */
+package com.kkbox.toolkit.internal.image;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+public class KKImageBitmapPool {
+	private final HashMap<String, LinkedList<Bitmap>> buckets = new HashMap<String, LinkedList<Bitmap>>();
+	private final LinkedHashSet<Bitmap> bitmaps = new LinkedHashSet<Bitmap>();
+	private final long maxSize;
+	private long size = 0;
+
+	public KKImageBitmapPool(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	private static String getBucketKey(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || bitmaps.contains(bitmap)) { return; }
+		if (!bitmap.isMutable() || sizeOf(bitmap) > maxSize) {
+			bitmap.recycle();
+			return;
+		}
+		String key = getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		LinkedList<Bitmap> bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			buckets.put(key, bucket);
+		}
+		bucket.addLast(bitmap);
+		bitmaps.add(bitmap);
+		size += sizeOf(bitmap);
+		trimToSize(maxSize);
+	}
+
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		LinkedList<Bitmap> bucket = buckets.get(getBucketKey(width, height, config));
+		if (bucket == null || bucket.isEmpty()) { return null; }
+		Bitmap bitmap = bucket.removeLast();
+		bitmaps.remove(bitmap);
+		size -= sizeOf(bitmap);
+		return bitmap;
+	}
+
+	public synchronized void clear() {
+		trimToSize(-1);
+	}
+
+	private void trimToSize(long targetSize) {
+		Iterator<Bitmap> iterator = bitmaps.iterator();
+		while (size > targetSize && iterator.hasNext()) {
+			Bitmap bitmap = iterator.next();
+			iterator.remove();
+			buckets.get(getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).remove(bitmap);
+			size -= sizeOf(bitmap);
+			bitmap.recycle();
+		}
+	}
+
+	private static int sizeOf(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,93 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageBitmapReferences
+ */
+package com.kkbox.toolkit.internal.image;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.kkbox.toolkit.image.KKImageManager;
+
+import java.util.WeakHashMap;
+
+/**
+ * Counts who holds a bitmap: the views showing it, the memory cache, a drag image and so on. Only when the last holder
+ * releases it is a bitmap decoded by the image pipeline handed to the bitmap pool, or recycled before API 11. Other
+ * bitmaps are recycled before API 11 and otherwise left to the garbage collector. Bitmaps that escaped to callers are
+ * never reused, since there is no telling who still draws them.
+ */
+public class KKImageBitmapReferences {
+	private static final int ESCAPED = -1;
+	private static final WeakHashMap<Bitmap, Reference> references = new WeakHashMap<Bitmap, Reference>();
+
+	private static class Reference {
+		private int count = 0;
+		private boolean owned = false;
+	}
+
+	/**
+	 * Marks bitmap as decoded by the image pipeline, so its memory may be reused once it is released.
+	 */
+	public static synchronized void register(Bitmap bitmap) {
+		if (bitmap == null) { return; }
+		getReference(bitmap).owned = true;
+	}
+
+	public static synchronized void retain(Bitmap bitmap) {
+		if (bitmap == null) { return; }
+		Reference reference = getReference(bitmap);
+		if (reference.count != ESCAPED) {
+			reference.count++;
+		}
+	}
+
+	public static void release(Bitmap bitmap) {
+		if (bitmap == null) { return; }
+		boolean owned;
+		synchronized (KKImageBitmapReferences.class) {
+			Reference reference = references.get(bitmap);
+			if (reference == null || reference.count <= 0) { return; }
+			reference.count--;
+			if (reference.count > 0) { return; }
+			references.remove(bitmap);
+			owned = reference.owned;
+		}
+		KKImageBitmapPool pool = KKImageManager.getBitmapPool();
+		if (owned && pool != null) {
+			pool.put(bitmap);
+		} else if (Build.VERSION.SDK_INT < 11) {
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Bitmaps handed out to callers may be displayed anywhere, so they are never reused or recycled.
+	 */
+	public static synchronized void markEscaped(Bitmap bitmap) {
+		if (bitmap == null) { return; }
+		getReference(bitmap).count = ESCAPED;
+	}
+
+	private static Reference getReference(Bitmap bitmap) {
+		Reference reference = references.get(bitmap);
+		if (reference == null) {
+			reference = new Reference();
+			references.put(bitmap, reference);
+		}
+		return reference;
+	}
+}
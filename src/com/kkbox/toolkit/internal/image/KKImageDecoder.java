@@ -0,0 +1,193 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageDecoder
+ */
+package com.kkbox.toolkit.internal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.kkbox.toolkit.image.KKImageDecodeOptions;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class KKImageDecoder {
+	private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+	// image headers fit well within this, so the bounds pass can be rewound without re-reading the source
+	private static final int STREAM_MARK_LIMIT = 64 * 1024;
+
+	private static abstract class Source {
+		abstract Bitmap decode(BitmapFactory.Options options);
+	}
+
+	/**
+	 * Decodes path for a target of targetWidth x targetHeight pixels. A size of 0 leaves that side unconstrained.
+	 * The bitmap is subsampled by a power of two and, when exactScale is set, scaled down to just cover the target.
+	 * If a pool is given, decoded bitmaps are mutable and reuse pooled memory where the platform allows it.
+	 * The bitmap config is chosen by decodeOptions from the MIME type found in the image header.
+	 */
+	public static Bitmap decodeFile(final String path, int targetWidth, int targetHeight, boolean exactScale, KKImageBitmapPool pool,
+			KKImageDecodeOptions decodeOptions) {
+		return decode(new Source() {
+			@Override
+			Bitmap decode(BitmapFactory.Options options) {
+				return BitmapFactory.decodeFile(path, options);
+			}
+		}, targetWidth, targetHeight, exactScale, pool, decodeOptions);
+	}
+
+	/**
+	 * Decodes data the same way as decodeFile.
+	 */
+	public static Bitmap decodeByteArray(final byte[] data, int targetWidth, int targetHeight, boolean exactScale, KKImageBitmapPool pool,
+			KKImageDecodeOptions decodeOptions) {
+		return decode(new Source() {
+			@Override
+			Bitmap decode(BitmapFactory.Options options) {
+				return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			}
+		}, targetWidth, targetHeight, exactScale, pool, decodeOptions);
+	}
+
+	private static Bitmap decode(Source source, int targetWidth, int targetHeight, boolean exactScale, KKImageBitmapPool pool,
+			KKImageDecodeOptions decodeOptions) {
+		long startTime = KKImageStages.now();
+		try {
+			return decodeSource(source, targetWidth, targetHeight, exactScale, pool, decodeOptions);
+		} finally {
+			KKImageMetrics.recordDecodeTime(KKImageStages.now() - startTime);
+		}
+	}
+
+	private static Bitmap decodeSource(Source source, int targetWidth, int targetHeight, boolean exactScale, KKImageBitmapPool pool,
+			KKImageDecodeOptions decodeOptions) {
+		boolean reuseBitmap = pool != null && Build.VERSION.SDK_INT >= 11;
+		// the bounds pass also finds the MIME type the config is chosen by
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		source.decode(options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) { return null; }
+		prepareOptions(options, targetWidth, targetHeight, reuseBitmap ? pool : null, decodeOptions);
+		Bitmap bitmap;
+		try {
+			bitmap = source.decode(options);
+		} catch (IllegalArgumentException e) {
+			// the pooled bitmap was rejected by the decoder
+			pool.put(options.inBitmap);
+			options.inBitmap = null;
+			bitmap = source.decode(options);
+		}
+		if (bitmap == null && options.inBitmap != null) {
+			pool.put(options.inBitmap);
+		}
+		if (bitmap != null && exactScale) {
+			bitmap = scaleToCover(bitmap, targetWidth, targetHeight, pool);
+		}
+		return bitmap;
+	}
+
+	public static boolean isDecodable(String path) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		return options.outWidth > 0 && options.outHeight > 0;
+	}
+
+	/**
+	 * Decodes stream like decodeFile while reading it only once. Returns null if the stream could not be decoded in a
+	 * single pass; the caller should then fall back to wherever it kept a copy of the data.
+	 */
+	public static Bitmap decodeStream(InputStream stream, int targetWidth, int targetHeight, boolean exactScale, KKImageBitmapPool pool,
+			KKImageDecodeOptions decodeOptions) {
+		boolean reuseBitmap = pool != null && Build.VERSION.SDK_INT >= 11;
+		BufferedInputStream bufferedStream = new BufferedInputStream(stream, STREAM_BUFFER_SIZE);
+		bufferedStream.mark(STREAM_MARK_LIMIT);
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(bufferedStream, null, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) { return null; }
+		try {
+			bufferedStream.reset();
+		} catch (IOException e) {
+			return null;
+		}
+		prepareOptions(options, targetWidth, targetHeight, reuseBitmap ? pool : null, decodeOptions);
+		Bitmap bitmap;
+		try {
+			bitmap = BitmapFactory.decodeStream(bufferedStream, null, options);
+		} catch (IllegalArgumentException e) {
+			// the pooled bitmap was rejected and the stream is already consumed
+			bitmap = null;
+		}
+		if (bitmap == null && options.inBitmap != null) {
+			pool.put(options.inBitmap);
+		}
+		if (bitmap != null && exactScale) {
+			bitmap = scaleToCover(bitmap, targetWidth, targetHeight, pool);
+		}
+		return bitmap;
+	}
+
+	private static void prepareOptions(BitmapFactory.Options options, int targetWidth, int targetHeight, KKImageBitmapPool pool,
+			KKImageDecodeOptions decodeOptions) {
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+		options.inPreferredConfig = decodeOptions.selectConfig(options.outMimeType);
+		options.inDither = decodeOptions.isDither();
+		if (pool != null) {
+			options.inMutable = true;
+			// before API 19 inBitmap must match the decoded size exactly, which rules out subsampled decodes
+			if (options.inSampleSize == 1) {
+				options.inBitmap = pool.get(options.outWidth, options.outHeight, options.inPreferredConfig);
+			}
+		}
+	}
+
+	public static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight) {
+		// an image with no target at all is decoded at full size
+		if (targetWidth <= 0 && targetHeight <= 0) { return 1; }
+		int inSampleSize = 1;
+		while (inSampleSize <= Integer.MAX_VALUE / 4 && covers(width / (inSampleSize * 2), targetWidth)
+				&& covers(height / (inSampleSize * 2), targetHeight)) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+
+	private static boolean covers(int size, int targetSize) {
+		return targetSize <= 0 || size >= targetSize;
+	}
+
+	private static Bitmap scaleToCover(Bitmap bitmap, int targetWidth, int targetHeight, KKImageBitmapPool pool) {
+		float scale = Math.max(targetWidth > 0 ? (float)targetWidth / bitmap.getWidth() : 0,
+				targetHeight > 0 ? (float)targetHeight / bitmap.getHeight() : 0);
+		if (scale <= 0 || scale >= 1) { return bitmap; }
+		int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+		int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+		Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, width, height, true);
+		if (scaledBitmap != bitmap) {
+			if (pool != null) {
+				pool.put(bitmap);
+			} else {
+				bitmap.recycle();
+			}
+		}
+		return scaledBitmap;
+	}
+}
@@ -0,0 +1,841 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageDiskCache
+ */
+package com.kkbox.toolkit.internal.image;
+
+import android.content.Context;
+import android.os.Build;
+
+import com.kkbox.toolkit.utils.KKDebug;
+import com.kkbox.toolkit.utils.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+public class KKImageDiskCache {
+	private static final String JOURNAL_FILE = "journal";
+	private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+	private static final String JOURNAL_MAGIC = "KKImageDiskCache";
+	private static final String JOURNAL_VERSION = "3";
+	// entries of a version 2 journal each have a file of their own, named by their key
+	private static final String JOURNAL_VERSION_UNSHARED = "2";
+	// entries of a version 1 journal still live in the flat layout used before the cache was sharded
+	private static final String JOURNAL_VERSION_FLAT = "1";
+	private static final String CLEAN = "CLEAN";
+	private static final String READ = "READ";
+	private static final String REMOVE = "REMOVE";
+	// URLEncoder never emits this, so it can stand for a missing validator
+	private static final String NO_VALUE = "~";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final String PACK_DIRECTORY = "packs";
+	private static final String BLOB_DIRECTORY = "blobs";
+	private static final String BLOB_DIGEST = "SHA-1";
+	private static final int HASH_BUFFER_SIZE = 8 * 1024;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final long NO_CHECKSUM = -1;
+	private static final int REBUILD_JOURNAL_THRESHOLD = 2000;
+	private static final long DEFAULT_MAX_SIZE = 50 * 1024 * 1024;
+	private static final long FATAL_STORAGE_SIZE = 30 * 1024 * 1024;
+	private static final ExecutorService cleanupExecutor = Executors.newSingleThreadExecutor();
+	private static KKImageDiskCache instance;
+
+	private final File directory;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+	// number of entries sharing each blob; a blob counts towards the size once, however many urls point at it
+	private final HashMap<String, Integer> blobReferences = new HashMap<String, Integer>();
+	private Writer journalWriter;
+	// the settings are set without the lock, from the UI thread, and applied by the cleanup thread
+	private volatile long maxSize = DEFAULT_MAX_SIZE;
+	private long size = 0;
+	private int redundantOpCount = 0;
+	// read without the lock, which trimming and journal writes may hold for a while
+	private volatile int evictionCount = 0;
+	private boolean initialized = false;
+	private boolean flatLayout = false;
+	private KKImagePackStore packStore;
+	private volatile int packThreshold = 0;
+
+	private static class Entry {
+		private final String key;
+		private final long length;
+		private final Metadata metadata;
+		// content hash of the shared file holding the data, or null if the entry is packed or has a file of its own
+		private final String blob;
+		// CRC32 of the data, or NO_CHECKSUM for entries committed before checksums were kept
+		private final long checksum;
+
+		private Entry(String key, long length, Metadata metadata) {
+			this(key, length, metadata, null, NO_CHECKSUM);
+		}
+
+		private Entry(String key, long length, Metadata metadata, String blob, long checksum) {
+			this.key = key;
+			this.length = length;
+			this.metadata = metadata;
+			this.blob = blob;
+			this.checksum = checksum;
+		}
+	}
+
+	private static class Digest {
+		private String hash;
+		private long checksum = NO_CHECKSUM;
+	}
+
+	/**
+	 * How much the cache saves by storing the same content, e.g. artwork served under several urls, only once.
+	 */
+	public static class DedupReport {
+		public final int entryCount;
+		public final int blobCount;
+		// what the entries would take if each had its own copy
+		public final long logicalBytes;
+		public final long storedBytes;
+
+		DedupReport(int entryCount, int blobCount, long logicalBytes, long storedBytes) {
+			this.entryCount = entryCount;
+			this.blobCount = blobCount;
+			this.logicalBytes = logicalBytes;
+			this.storedBytes = storedBytes;
+		}
+
+		public double getRatio() {
+			return storedBytes > 0 ? (double)logicalBytes / storedBytes : 1;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("entries: ").append(entryCount).append(", shared files ").append(blobCount).append('\n');
+			builder.append("bytes: ").append(logicalBytes).append(" logical, ").append(storedBytes).append(" stored\n");
+			builder.append("dedup ratio: ").append(getRatio());
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * HTTP validators and freshness of an entry. An expiry time of 0 means the entry never goes stale.
+	 */
+	public static class Metadata {
+		public final String etag;
+		public final String lastModified;
+		public final long expires;
+
+		public Metadata(String etag, String lastModified, long expires) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.expires = expires;
+		}
+
+		public boolean isExpired(long now) {
+			return expires > 0 && now >= expires;
+		}
+	}
+
+	private final Runnable cleanupRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (KKImageDiskCache.this) {
+				if (!ensureInitialized()) { return; }
+				if (packThreshold > 0 && packStore == null) {
+					packStore = new KKImagePackStore(new File(directory, PACK_DIRECTORY));
+				}
+				trimToSize();
+				if (packStore != null && packStore.needsCompaction()) {
+					packStore.compact();
+				}
+				if (redundantOpCount >= REBUILD_JOURNAL_THRESHOLD && redundantOpCount >= entries.size()) {
+					rebuildJournal();
+				}
+			}
+		}
+	};
+
+	public static synchronized KKImageDiskCache getInstance(Context context) {
+		if (instance == null) {
+			instance = new KKImageDiskCache(new File(context.getCacheDir().getAbsolutePath() + File.separator + "image"));
+		}
+		return instance;
+	}
+
+	public static String getKey(String url) {
+		return StringUtils.getMd5Hash(url);
+	}
+
+	private KKImageDiskCache(File directory) {
+		this.directory = directory;
+		if (!directory.exists()) {
+			directory.mkdir();
+		}
+	}
+
+	public File getFile(String key) {
+		return new File(getShardDirectory(directory, key), key);
+	}
+
+	private File getBlobFile(String blob) {
+		return new File(getShardDirectory(new File(directory, BLOB_DIRECTORY), blob), blob);
+	}
+
+	private static File getShardDirectory(File base, String key) {
+		// two levels of 16 directories, named by the leading hex digits of the key, keep every directory small
+		if (key.length() < 2) { return base; }
+		return new File(new File(base, key.substring(0, 1)), key.substring(1, 2));
+	}
+
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		cleanupExecutor.execute(cleanupRunnable);
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getSize() {
+		ensureInitialized();
+		return size;
+	}
+
+	public int getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Must not be called on the UI thread.
+	 */
+	public synchronized DedupReport getDedupReport() {
+		ensureInitialized();
+		long logicalBytes = 0;
+		for (Entry entry : entries.values()) {
+			logicalBytes += entry.length;
+		}
+		return new DedupReport(entries.size(), blobReferences.size(), logicalBytes, size);
+	}
+
+	/**
+	 * Entries of at most bytes are appended to pack files instead of getting a file of their own. 0 turns packing off,
+	 * entries packed before stay readable.
+	 */
+	public void setPackThreshold(int bytes) {
+		packThreshold = bytes;
+		cleanupExecutor.execute(cleanupRunnable);
+	}
+
+	/**
+	 * Returns true if key has a committed entry, either a file or packed data. Must not be called on the UI thread.
+	 */
+	public synchronized boolean contains(String key) {
+		if (!ensureInitialized()) { return false; }
+		if (packStore != null && packStore.contains(key) && entries.get(key) != null) {
+			appendJournal(READ + " " + key, false);
+			return true;
+		}
+		return get(key) != null;
+	}
+
+	/**
+	 * Returns the data of key if it is packed, or null if it isn't. Must not be called on the UI thread.
+	 */
+	public synchronized byte[] getPackedData(String key) {
+		if (!ensureInitialized() || packStore == null || !packStore.contains(key)) { return null; }
+		Entry entry = entries.get(key);
+		if (entry == null) { return null; }
+		try {
+			byte[] data = packStore.get(key);
+			if (!isIntact(entry, data)) {
+				removeEntry(entry);
+				return null;
+			}
+			return data;
+		} catch (IOException e) {
+			removeEntry(entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns false if data is not what was committed for key, e.g. because the file was cut short or overwritten. The
+	 * entry is removed in that case.
+	 */
+	public boolean verify(String key, byte[] data) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry == null || isIntact(entry, data)) { return true; }
+		synchronized (this) {
+			if (entries.get(key) == entry) {
+				removeEntry(entry);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Like verify(key, data) for an entry that is not packed, reading file in chunks instead of all at once.
+	 */
+	public boolean verify(String key, File file) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry == null || isIntact(entry, file)) { return true; }
+		synchronized (this) {
+			if (entries.get(key) == entry) {
+				removeEntry(entry);
+			}
+		}
+		return false;
+	}
+
+	private static boolean isIntact(Entry entry, File file) {
+		if (file.length() != entry.length) { return false; }
+		if (entry.checksum == NO_CHECKSUM) { return true; }
+		return digestFile(file, false).checksum == entry.checksum;
+	}
+
+	private static boolean isIntact(Entry entry, byte[] data) {
+		if (data.length != entry.length) { return false; }
+		if (entry.checksum == NO_CHECKSUM) { return true; }
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return crc.getValue() == entry.checksum;
+	}
+
+	/**
+	 * Returns the committed file of key, or null if there is none, the entry is packed or the file no longer has the length
+	 * it was committed with. Must not be called on the UI thread.
+	 */
+	public synchronized File get(String key) {
+		if (!ensureInitialized()) { return null; }
+		Entry entry = entries.get(key);
+		if (entry == null || (packStore != null && packStore.contains(key))) { return null; }
+		File file = entry.blob != null ? getBlobFile(entry.blob) : getFile(key);
+		// checking the length is a stat, checksums are left to callers that read the data anyway
+		if (!file.exists() || file.length() != entry.length) {
+			removeEntry(entry);
+			return null;
+		}
+		appendJournal(READ + " " + key, false);
+		return file;
+	}
+
+	/**
+	 * Creates a file to write a new entry into. It is only visible to readers after commit().
+	 */
+	public File createTempFile(String key) throws IOException {
+		if (!directory.exists()) {
+			directory.mkdir();
+		}
+		return File.createTempFile(key + ".", TEMP_FILE_SUFFIX, directory);
+	}
+
+	public synchronized Metadata getMetadata(String key) {
+		if (!ensureInitialized()) { return null; }
+		Entry entry = entries.get(key);
+		return entry != null ? entry.metadata : null;
+	}
+
+	/**
+	 * Replaces the metadata of an existing entry, e.g. after the server confirmed it with 304 Not Modified.
+	 */
+	public synchronized boolean updateMetadata(String key, Metadata metadata) {
+		if (!ensureInitialized()) { return false; }
+		Entry entry = entries.get(key);
+		if (entry == null) { return false; }
+		entry = new Entry(key, entry.length, metadata, entry.blob, entry.checksum);
+		entries.put(key, entry);
+		appendJournal(formatCleanLine(entry), true);
+		return true;
+	}
+
+	public boolean commit(String key, File tempFile) {
+		return commit(key, tempFile, null);
+	}
+
+	/**
+	 * Entries that are not packed are stored by a hash of their content, so urls serving the same bytes share one file.
+	 * The length and checksum of the data are kept with the entry to detect corruption before decoding.
+	 */
+	public boolean commit(String key, File tempFile, Metadata metadata) {
+		// hashing reads the whole file, which is better done before taking the lock
+		Digest digest = digestFile(tempFile, !isPackable(tempFile.length()));
+		String blob = digest.hash;
+		synchronized (this) {
+			if (!ensureInitialized()) {
+				tempFile.delete();
+				return false;
+			}
+			long length = tempFile.length();
+			if (!storeData(key, tempFile, blob)) {
+				tempFile.delete();
+				return false;
+			}
+			Entry entry = new Entry(key, length, metadata, blob, digest.checksum);
+			retainData(entry);
+			Entry previous = entries.put(key, entry);
+			if (previous != null) {
+				// storeData() already dropped a packed or own copy of the previous entry
+				if (releaseData(previous) && previous.blob != null) {
+					getBlobFile(previous.blob).delete();
+				}
+				redundantOpCount++;
+			}
+			appendJournal(formatCleanLine(entry), true);
+			cleanupExecutor.execute(cleanupRunnable);
+			return true;
+		}
+	}
+
+	/**
+	 * Must not be called on the UI thread.
+	 */
+	public synchronized void remove(String key) {
+		// before the journal is read entries is empty, the files would go while the journal still lists the key
+		if (ensureInitialized()) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				removeEntry(entry);
+				return;
+			}
+		}
+		getFile(key).delete();
+		if (packStore != null) {
+			packStore.remove(key);
+		}
+	}
+
+	public void removeInBackground(final String key) {
+		cleanupExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				remove(key);
+			}
+		});
+	}
+
+	public void trimInBackground() {
+		cleanupExecutor.execute(cleanupRunnable);
+	}
+
+	private boolean isPackable(long length) {
+		return packThreshold > 0 && length <= packThreshold;
+	}
+
+	private boolean storeData(String key, File tempFile, String blob) {
+		File file = getFile(key);
+		// drop the previous copy first, a crash in between then leaves no data rather than two versions
+		if (blob == null && packStore != null && isPackable(tempFile.length())) {
+			file.delete();
+			try {
+				packStore.put(key, tempFile);
+				tempFile.delete();
+				return true;
+			} catch (IOException e) {
+				KKDebug.w("failed to pack image cache entry: " + e);
+			}
+		}
+		if (packStore != null) {
+			packStore.remove(key);
+		}
+		if (blob == null) {
+			file.getParentFile().mkdirs();
+			return tempFile.renameTo(file);
+		}
+		file.delete();
+		File blobFile = getBlobFile(blob);
+		if (blobReferences.containsKey(blob) && blobFile.exists()) {
+			// another url already stored the same content
+			tempFile.delete();
+			return true;
+		}
+		blobFile.getParentFile().mkdirs();
+		return tempFile.renameTo(blobFile);
+	}
+
+	private void retainData(Entry entry) {
+		if (entry.blob == null) {
+			size += entry.length;
+			return;
+		}
+		Integer references = blobReferences.get(entry.blob);
+		if (references == null) {
+			size += entry.length;
+			references = 0;
+		}
+		blobReferences.put(entry.blob, references + 1);
+	}
+
+	/**
+	 * Returns true if no other entry shares the data of entry, which may then be deleted.
+	 */
+	private boolean releaseData(Entry entry) {
+		if (entry.blob != null) {
+			Integer references = blobReferences.get(entry.blob);
+			if (references != null && references > 1) {
+				blobReferences.put(entry.blob, references - 1);
+				return false;
+			}
+			blobReferences.remove(entry.blob);
+		}
+		size -= entry.length;
+		return true;
+	}
+
+	private void deleteData(Entry entry) {
+		if (!releaseData(entry)) { return; }
+		if (entry.blob != null) {
+			getBlobFile(entry.blob).delete();
+		} else {
+			getFile(entry.key).delete();
+			if (packStore != null) {
+				packStore.remove(entry.key);
+			}
+		}
+	}
+
+	private void removeEntry(Entry entry) {
+		deleteData(entry);
+		entries.remove(entry.key);
+		appendJournal(REMOVE + " " + entry.key, true);
+	}
+
+	private void trimToSize() {
+		long limit = maxSize;
+		if (Build.VERSION.SDK_INT >= 9) {
+			// never let the cache push the free space of the device below FATAL_STORAGE_SIZE
+			limit = Math.min(limit, size + directory.getUsableSpace() - FATAL_STORAGE_SIZE);
+		}
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (size > limit && iterator.hasNext()) {
+			// evicting a url whose content other urls still use frees nothing, the shared file stays
+			Entry entry = iterator.next().getValue();
+			deleteData(entry);
+			iterator.remove();
+			appendJournal(REMOVE + " " + entry.key, false);
+			evictionCount++;
+		}
+		flushJournal();
+	}
+
+	private boolean ensureInitialized() {
+		if (initialized) { return journalWriter != null; }
+		initialized = true;
+		if (!directory.exists()) {
+			directory.mkdir();
+		}
+		boolean journalRead = readJournal();
+		if (!journalRead) {
+			entries.clear();
+			blobReferences.clear();
+			size = 0;
+			flatLayout = true;
+			scanDirectory();
+		}
+		if (flatLayout) {
+			moveToShards();
+		}
+		deleteUntrackedFiles();
+		deleteUntrackedBlobs();
+		File packDirectory = new File(directory, PACK_DIRECTORY);
+		if (packThreshold > 0 || packDirectory.exists()) {
+			packStore = new KKImagePackStore(packDirectory);
+			for (String key : packStore.keySet()) {
+				if (!journalRead && !entries.containsKey(key)) {
+					Entry entry = new Entry(key, packStore.getLength(key), null);
+					entries.put(key, entry);
+					retainData(entry);
+				} else if (!entries.containsKey(key)) {
+					packStore.remove(key);
+				}
+			}
+		}
+		return rebuildJournal();
+	}
+
+	private boolean readJournal() {
+		File journalFile = new File(directory, JOURNAL_FILE);
+		if (!journalFile.exists()) { return false; }
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(journalFile));
+			String header = reader.readLine();
+			if ((JOURNAL_MAGIC + " " + JOURNAL_VERSION_FLAT).equals(header)) {
+				flatLayout = true;
+			} else if (!(JOURNAL_MAGIC + " " + JOURNAL_VERSION).equals(header)
+					&& !(JOURNAL_MAGIC + " " + JOURNAL_VERSION_UNSHARED).equals(header)) { return false; }
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ");
+				if ((parts.length == 3 || parts.length >= 6 && parts.length <= 8) && parts[0].equals(CLEAN)) {
+					Metadata metadata = null;
+					if (parts.length >= 6) {
+						metadata = new Metadata(decodeValue(parts[4]), decodeValue(parts[5]), Long.parseLong(parts[3]));
+					}
+					String blob = parts.length >= 7 ? decodeValue(parts[6]) : null;
+					long checksum = parts.length == 8 ? Long.parseLong(parts[7]) : NO_CHECKSUM;
+					Entry entry = new Entry(parts[1], Long.parseLong(parts[2]), metadata, blob, checksum);
+					Entry previous = entries.put(entry.key, entry);
+					retainData(entry);
+					if (previous != null) {
+						releaseData(previous);
+					}
+				} else if (parts.length == 2 && parts[0].equals(READ)) {
+					entries.get(parts[1]);
+				} else if (parts.length == 2 && parts[0].equals(REMOVE)) {
+					Entry previous = entries.remove(parts[1]);
+					if (previous != null) {
+						releaseData(previous);
+					}
+				}
+			}
+			return true;
+		} catch (Exception e) {
+			KKDebug.w("image disk cache journal is corrupted: " + e);
+			return false;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	private void scanDirectory() {
+		// caches created before the journal existed, or whose journal was lost: adopt the files, oldest first
+		ArrayList<File> fileList = new ArrayList<File>();
+		File[] topFiles = directory.listFiles();
+		if (topFiles == null) { return; }
+		for (File file : topFiles) {
+			if (file.isFile()) {
+				fileList.add(file);
+			} else if (file.getName().length() == 1) {
+				File[] shards = file.listFiles();
+				for (int i = 0; shards != null && i < shards.length; i++) {
+					File[] shardFiles = shards[i].listFiles();
+					if (shardFiles != null) {
+						fileList.addAll(Arrays.asList(shardFiles));
+					}
+				}
+			}
+		}
+		File[] files = fileList.toArray(new File[fileList.size()]);
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long difference = lhs.lastModified() - rhs.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isFile() && !name.startsWith(JOURNAL_FILE) && !name.endsWith(TEMP_FILE_SUFFIX)) {
+				Entry entry = new Entry(name, file.length(), null);
+				entries.put(name, entry);
+				retainData(entry);
+			}
+		}
+	}
+
+	private void moveToShards() {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			File flatFile = new File(directory, entry.key);
+			if (!flatFile.exists()) {
+				continue;
+			}
+			File file = getFile(entry.key);
+			file.getParentFile().mkdirs();
+			if (!flatFile.renameTo(file)) {
+				flatFile.delete();
+				iterator.remove();
+				releaseData(entry);
+			}
+		}
+		flatLayout = false;
+	}
+
+	private void deleteUntrackedFiles() {
+		// entries live in the shard directories, other files at the top level are leftover temp or unmigrated files
+		File[] files = directory.listFiles();
+		if (files == null) { return; }
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isFile() && !name.startsWith(JOURNAL_FILE) && !entries.containsKey(name)) {
+				file.delete();
+			}
+		}
+	}
+
+	private void deleteUntrackedBlobs() {
+		// blobs written just before a crash, or left behind by a lost journal
+		File[] shards = new File(directory, BLOB_DIRECTORY).listFiles();
+		for (int i = 0; shards != null && i < shards.length; i++) {
+			File[] subShards = shards[i].listFiles();
+			for (int j = 0; subShards != null && j < subShards.length; j++) {
+				File[] files = subShards[j].listFiles();
+				for (int k = 0; files != null && k < files.length; k++) {
+					if (!blobReferences.containsKey(files[k].getName())) {
+						files[k].delete();
+					}
+				}
+			}
+		}
+	}
+
+	private boolean rebuildJournal() {
+		try {
+			if (journalWriter != null) {
+				journalWriter.close();
+			}
+			File journalFileTemp = new File(directory, JOURNAL_FILE_TEMP);
+			Writer writer = new BufferedWriter(new FileWriter(journalFileTemp));
+			writer.write(JOURNAL_MAGIC + " " + JOURNAL_VERSION + "\n");
+			for (Entry entry : new ArrayList<Entry>(entries.values())) {
+				writer.write(formatCleanLine(entry) + "\n");
+			}
+			writer.close();
+			if (!journalFileTemp.renameTo(new File(directory, JOURNAL_FILE))) { throw new IOException("failed to rename journal"); }
+			journalWriter = new BufferedWriter(new FileWriter(new File(directory, JOURNAL_FILE), true));
+			redundantOpCount = 0;
+			return true;
+		} catch (IOException e) {
+			KKDebug.w("failed to write image disk cache journal: " + e);
+			journalWriter = null;
+			return false;
+		}
+	}
+
+	private static String formatCleanLine(Entry entry) {
+		String line = CLEAN + " " + entry.key + " " + entry.length;
+		Metadata metadata = entry.metadata;
+		if (metadata == null && (entry.blob != null || entry.checksum != NO_CHECKSUM)) {
+			// the blob and the checksum are the seventh and eighth field, so the metadata fields can't be left out
+			metadata = new Metadata(null, null, 0);
+		}
+		if (metadata != null) {
+			line += " " + metadata.expires + " " + encodeValue(metadata.etag) + " " + encodeValue(metadata.lastModified);
+		}
+		if (entry.checksum != NO_CHECKSUM) {
+			line += " " + encodeValue(entry.blob) + " " + entry.checksum;
+		} else if (entry.blob != null) {
+			line += " " + entry.blob;
+		}
+		return line;
+	}
+
+	/**
+	 * Computes the checksum of file and, if hashContent is set, the content hash naming its blob, in a single pass.
+	 */
+	private static Digest digestFile(File file, boolean hashContent) {
+		Digest result = new Digest();
+		InputStream stream = null;
+		try {
+			MessageDigest digest = hashContent ? MessageDigest.getInstance(BLOB_DIGEST) : null;
+			CRC32 crc = new CRC32();
+			stream = new FileInputStream(file);
+			byte[] buffer = new byte[HASH_BUFFER_SIZE];
+			int length;
+			while ((length = stream.read(buffer)) != -1) {
+				crc.update(buffer, 0, length);
+				if (digest != null) {
+					digest.update(buffer, 0, length);
+				}
+			}
+			result.checksum = crc.getValue();
+			if (digest != null) {
+				byte[] hash = digest.digest();
+				char[] hex = new char[hash.length * 2];
+				for (int i = 0; i < hash.length; i++) {
+					hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0f];
+					hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0f];
+				}
+				result.hash = new String(hex);
+			}
+		} catch (IOException e) {
+			// the entry is then stored in a file of its own, without a checksum
+			result.checksum = NO_CHECKSUM;
+		} catch (NoSuchAlgorithmException e) {
+			result.checksum = NO_CHECKSUM;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {}
+			}
+		}
+		return result;
+	}
+
+	private static String encodeValue(String value) {
+		if (value == null) { return NO_VALUE; }
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return NO_VALUE;
+		}
+	}
+
+	private static String decodeValue(String value) throws UnsupportedEncodingException {
+		return NO_VALUE.equals(value) ? null : URLDecoder.decode(value, "UTF-8");
+	}
+
+	private void appendJournal(String line, boolean flush) {
+		if (journalWriter == null) { return; }
+		try {
+			journalWriter.write(line + "\n");
+			if (flush) {
+				journalWriter.flush();
+			}
+			redundantOpCount++;
+		} catch (IOException e) {
+			KKDebug.w("failed to append image disk cache journal: " + e);
+		}
+	}
+
+	private void flushJournal() {
+		if (journalWriter == null) { return; }
+		try {
+			journalWriter.flush();
+		} catch (IOException e) {}
+	}
+}
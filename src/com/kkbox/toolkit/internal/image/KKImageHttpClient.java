@@ -0,0 +1,94 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageHttpClient
+ */
+package com.kkbox.toolkit.internal.image;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A keep-alive connection pool shared by all image requests, so consecutive fetches from the same host skip the TCP and
+ * TLS handshakes. Connections left idle for IDLE_TIMEOUT are closed.
+ */
+public class KKImageHttpClient {
+	private static final int DEFAULT_TIMEOUT = 10000;
+	private static final long IDLE_TIMEOUT = 30 * 1000;
+	private static final ScheduledExecutorService evictionExecutor = Executors.newSingleThreadScheduledExecutor();
+	private final ClientConnectionManager connectionManager;
+	private final DefaultHttpClient httpclient;
+	private ScheduledFuture<?> evictionFuture;
+
+	private final Runnable evictionRunnable = new Runnable() {
+		@Override
+		public void run() {
+			connectionManager.closeExpiredConnections();
+			connectionManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+	};
+
+	public KKImageHttpClient(int maxConnections) {
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, DEFAULT_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, DEFAULT_TIMEOUT);
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+		ConnManagerParams.setTimeout(params, DEFAULT_TIMEOUT);
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+		httpclient = new DefaultHttpClient(connectionManager, params);
+	}
+
+	public void setTimeouts(int connectionTimeout, int socketTimeout) {
+		HttpParams params = httpclient.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+		HttpConnectionParams.setSoTimeout(params, socketTimeout);
+	}
+
+	public HttpResponse execute(HttpUriRequest request) throws IOException {
+		return httpclient.execute(request);
+	}
+
+	/**
+	 * Called whenever a fetch finishes, idle connections are closed once no fetch has finished for IDLE_TIMEOUT.
+	 */
+	public synchronized void scheduleIdleEviction() {
+		if (evictionFuture != null) {
+			evictionFuture.cancel(false);
+		}
+		evictionFuture = evictionExecutor.schedule(evictionRunnable, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+}
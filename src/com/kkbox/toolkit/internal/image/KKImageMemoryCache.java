@@ -0,0 +1,178 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageMemoryCache
+ */
+package com.kkbox.toolkit.internal.image;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import com.kkbox.toolkit.image.KKImageDecodeOptions;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class KKImageMemoryCache {
+	private final LinkedHashMap<String, Bitmap> map = new LinkedHashMap<String, Bitmap>(0, 0.75f, true);
+	private final HashSet<Bitmap> bitmaps = new HashSet<Bitmap>();
+	private final long maxSize;
+	private long size = 0;
+	private int hitCount = 0;
+	private int missCount = 0;
+	private int evictionCount = 0;
+
+	public static String getKey(String url, int width, int height) {
+		return url + "#" + width + "x" + height;
+	}
+
+	public static String getKey(String url, int width, int height, KKImageDecodeOptions decodeOptions) {
+		return getKey(url, width, height) + decodeOptions.getCacheKeySuffix();
+	}
+
+	public KKImageMemoryCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public synchronized Bitmap get(String key) {
+		Bitmap bitmap = map.get(key);
+		if (bitmap != null) {
+			if (!bitmap.isRecycled()) {
+				hitCount++;
+				return bitmap;
+			}
+			map.remove(key);
+			bitmaps.remove(bitmap);
+			size -= sizeOf(bitmap);
+		}
+		missCount++;
+		return null;
+	}
+
+	public synchronized boolean contains(Bitmap bitmap) {
+		return bitmaps.contains(bitmap);
+	}
+
+	public void put(String key, Bitmap bitmap) {
+		// a bitmap larger than the whole cache would only evict everything else, itself included
+		if (bitmap == null || bitmap.isRecycled() || sizeOf(bitmap) > maxSize) { return; }
+		ArrayList<Bitmap> removedBitmaps = new ArrayList<Bitmap>();
+		boolean added;
+		synchronized (this) {
+			Bitmap previous = map.put(key, bitmap);
+			added = previous != bitmap;
+			bitmaps.add(bitmap);
+			size += sizeOf(bitmap);
+			if (previous != null && previous != bitmap) {
+				bitmaps.remove(previous);
+				size -= sizeOf(previous);
+				removedBitmaps.add(previous);
+			}
+			trimToSize(maxSize, removedBitmaps);
+		}
+		if (added) {
+			onBitmapAdded(bitmap);
+		}
+		notifyRemoved(removedBitmaps);
+	}
+
+	public void remove(String key) {
+		Bitmap previous;
+		synchronized (this) {
+			previous = map.remove(key);
+			if (previous == null) { return; }
+			bitmaps.remove(previous);
+			size -= sizeOf(previous);
+		}
+		onBitmapRemoved(previous);
+	}
+
+	public void evictAll() {
+		trimToSize(-1);
+	}
+
+	/**
+	 * Called without holding the cache lock whenever a bitmap is stored under a key, before any bitmap it evicts is removed.
+	 */
+	protected void onBitmapAdded(Bitmap bitmap) {}
+
+	/**
+	 * Called without holding the cache lock whenever a bitmap leaves the cache.
+	 */
+	protected void onBitmapRemoved(Bitmap bitmap) {}
+
+	public void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			evictAll();
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			trimToSize(maxSize / 2);
+		}
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized int getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return missCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return evictionCount;
+	}
+
+	private void trimToSize(long targetSize) {
+		ArrayList<Bitmap> removedBitmaps = new ArrayList<Bitmap>();
+		synchronized (this) {
+			trimToSize(targetSize, removedBitmaps);
+		}
+		notifyRemoved(removedBitmaps);
+	}
+
+	private void trimToSize(long targetSize, ArrayList<Bitmap> removedBitmaps) {
+		Iterator<Map.Entry<String, Bitmap>> iterator = map.entrySet().iterator();
+		while (size > targetSize && iterator.hasNext()) {
+			Map.Entry<String, Bitmap> entry = iterator.next();
+			size -= sizeOf(entry.getValue());
+			bitmaps.remove(entry.getValue());
+			removedBitmaps.add(entry.getValue());
+			iterator.remove();
+			evictionCount++;
+		}
+	}
+
+	private void notifyRemoved(ArrayList<Bitmap> removedBitmaps) {
+		for (Bitmap bitmap : removedBitmaps) {
+			onBitmapRemoved(bitmap);
+		}
+	}
+
+
+	// counts the bytes of the actual config, so an RGB_565 bitmap takes half the room of an ARGB_8888 one
+	private static int sizeOf(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,128 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageMetrics
+ */
+package com.kkbox.toolkit.internal.image;
+
+/**
+ * Counters of the image pipeline that no single cache or queue keeps track of. Updates are a few increments under one
+ * lock, so they are cheap enough to stay on in production.
+ */
+public class KKImageMetrics {
+	private static long diskHitCount = 0;
+	private static long networkHitCount = 0;
+	private static long downloadedBytes = 0;
+	private static final Histogram decodeTimes = new Histogram();
+	private static final Histogram downloadTimes = new Histogram();
+
+	/**
+	 * Counts of durations in power of two millisecond buckets: bucket 0 holds durations below 1 ms, bucket i durations
+	 * from 2^(i-1) up to 2^i ms, and the last bucket everything longer.
+	 */
+	public static class Histogram {
+		public static final int BUCKET_COUNT = 14;
+		private final long[] counts = new long[BUCKET_COUNT];
+
+		public static long getBucketLimit(int index) {
+			return index < BUCKET_COUNT - 1 ? 1L << index : Long.MAX_VALUE;
+		}
+
+		private Histogram() {}
+
+		private Histogram(Histogram histogram) {
+			System.arraycopy(histogram.counts, 0, counts, 0, BUCKET_COUNT);
+		}
+
+		private void add(long time) {
+			int index = time <= 0 ? 0 : Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(time));
+			counts[index]++;
+		}
+
+		public long getCount(int index) {
+			return counts[index];
+		}
+
+		public long[] getCounts() {
+			return counts.clone();
+		}
+
+		@Override
+		public String toString() {
+			return format(counts);
+		}
+
+		/**
+		 * Formats bucket counts like those returned by getCounts().
+		 */
+		public static String format(long[] counts) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				if (counts[i] == 0) {
+					continue;
+				}
+				if (builder.length() > 0) {
+					builder.append(", ");
+				}
+				builder.append(i < BUCKET_COUNT - 1 ? "<" + getBucketLimit(i) : ">=" + getBucketLimit(i - 1));
+				builder.append(" ms: ").append(counts[i]);
+			}
+			return builder.length() > 0 ? builder.toString() : "none";
+		}
+	}
+
+	/**
+	 * The image was found in the disk cache or a local file.
+	 */
+	public static synchronized void recordDiskHit() {
+		diskHitCount++;
+	}
+
+	/**
+	 * The image was fetched or revalidated over the network.
+	 */
+	public static synchronized void recordNetworkHit() {
+		networkHitCount++;
+	}
+
+	public static synchronized void recordDownload(long bytes, long time) {
+		downloadedBytes += bytes;
+		downloadTimes.add(time);
+	}
+
+	public static synchronized void recordDecodeTime(long time) {
+		decodeTimes.add(time);
+	}
+
+	public static synchronized long getDiskHitCount() {
+		return diskHitCount;
+	}
+
+	public static synchronized long getNetworkHitCount() {
+		return networkHitCount;
+	}
+
+	public static synchronized long getDownloadedBytes() {
+		return downloadedBytes;
+	}
+
+	public static synchronized Histogram getDecodeTimes() {
+		return new Histogram(decodeTimes);
+	}
+
+	public static synchronized Histogram getDownloadTimes() {
+		return new Histogram(downloadTimes);
+	}
+}
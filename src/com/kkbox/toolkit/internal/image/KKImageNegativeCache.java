@@ -0,0 +1,71 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageNegativeCache
+ */
+package com.kkbox.toolkit.internal.image;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Urls whose content turned out to be broken, e.g. truncated or not an image at all, and when they may be tried again.
+ * The wait doubles with every failure up to MAX_BACKOFF, and a successful load forgets the url.
+ */
+public class KKImageNegativeCache {
+	private static final long INITIAL_BACKOFF = 30 * 1000;
+	private static final long MAX_BACKOFF = 60 * 60 * 1000;
+	private static final int MAX_ENTRIES = 256;
+
+	private static class Failure {
+		private long backoff = INITIAL_BACKOFF;
+		private long retryTime;
+	}
+
+	private final LinkedHashMap<String, Failure> failures = new LinkedHashMap<String, Failure>(0, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	public synchronized boolean isBlocked(String url) {
+		Failure failure = failures.get(url);
+		return failure != null && KKImageStages.now() < failure.retryTime;
+	}
+
+	public synchronized void recordFailure(String url) {
+		Failure failure = failures.get(url);
+		if (failure == null) {
+			failure = new Failure();
+			failures.put(url, failure);
+		} else {
+			failure.backoff = Math.min(failure.backoff * 2, MAX_BACKOFF);
+		}
+		failure.retryTime = KKImageStages.now() + failure.backoff;
+	}
+
+	public synchronized void recordSuccess(String url) {
+		failures.remove(url);
+	}
+
+	public synchronized void clear() {
+		failures.clear();
+	}
+
+	public synchronized int size() {
+		return failures.size();
+	}
+}
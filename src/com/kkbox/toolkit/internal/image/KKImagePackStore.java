@@ -0,0 +1,328 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImagePackStore
+ */
+package com.kkbox.toolkit.internal.image;
+
+import com.kkbox.toolkit.utils.KKDebug;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps small cache entries as records appended to a few segment files instead of one file each. Records are found
+ * through an in-memory index rebuilt from the segments on start. Full segments are memory-mapped once, the segment still
+ * being appended to is read through its file. Removing an entry appends a tombstone; segments that are mostly garbage are
+ * compacted into the newest one.
+ * Not thread safe, KKImageDiskCache calls it with its own lock held.
+ */
+public class KKImagePackStore {
+	private static final String SEGMENT_SUFFIX = ".pack";
+	private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+	private static final int TOMBSTONE = -1;
+
+	private static class Location {
+		private final int segment;
+		private final long offset;
+		private final int length;
+
+		private Location(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static class Segment {
+		private final int id;
+		private final File file;
+		private long length = 0;
+		private long liveBytes = 0;
+		private MappedByteBuffer mappedBuffer;
+
+		private Segment(int id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+	}
+
+	private final File directory;
+	private final HashMap<String, Location> index = new HashMap<String, Location>();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private RandomAccessFile activeFile;
+	private Segment activeSegment;
+
+	public KKImagePackStore(File directory) {
+		this.directory = directory;
+		if (!directory.exists()) {
+			directory.mkdirs();
+		}
+		File[] files = directory.listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			String name = files[i].getName();
+			if (!name.endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			try {
+				int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(id, new Segment(id, files[i]));
+			} catch (NumberFormatException e) {
+				files[i].delete();
+			}
+		}
+		for (Segment segment : segments.values()) {
+			replay(segment);
+		}
+	}
+
+	public boolean contains(String key) {
+		return index.containsKey(key);
+	}
+
+	public Set<String> keySet() {
+		return new HashSet<String>(index.keySet());
+	}
+
+	public int getLength(String key) {
+		Location location = index.get(key);
+		return location != null ? location.length : 0;
+	}
+
+	public byte[] get(String key) throws IOException {
+		Location location = index.get(key);
+		if (location == null) { return null; }
+		Segment segment = segments.get(location.segment);
+		byte[] data = new byte[location.length];
+		if (segment == activeSegment) {
+			// the active segment keeps growing, it is only mapped once it is sealed
+			readActiveSegment(location.offset, data);
+			return data;
+		}
+		if (segment.mappedBuffer == null) {
+			RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+			try {
+				segment.mappedBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+			} finally {
+				file.close();
+			}
+		}
+		ByteBuffer buffer = segment.mappedBuffer.duplicate();
+		buffer.position((int)location.offset);
+		buffer.get(data);
+		return data;
+	}
+
+	public void put(String key, File file) throws IOException {
+		byte[] data = new byte[(int)file.length()];
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			input.readFully(data);
+		} finally {
+			input.close();
+		}
+		put(key, data);
+	}
+
+	public void remove(String key) {
+		if (!index.containsKey(key)) { return; }
+		try {
+			append(key, null);
+		} catch (IOException e) {
+			KKDebug.w("failed to append image pack tombstone: " + e);
+		}
+		removeFromIndex(key);
+	}
+
+	public boolean needsCompaction() {
+		long length = 0;
+		long liveBytes = 0;
+		for (Segment segment : segments.values()) {
+			if (segment != activeSegment) {
+				length += segment.length;
+				liveBytes += segment.liveBytes;
+			}
+		}
+		return length > 0 && liveBytes < length / 2;
+	}
+
+	/**
+	 * Moves the live records of all older segments to the newest one and deletes them. They are compacted together,
+	 * since a tombstone may only be dropped along with every older record of its key.
+	 */
+	public void compact() {
+		ArrayList<Segment> oldSegments = new ArrayList<Segment>();
+		HashSet<Integer> oldSegmentIds = new HashSet<Integer>();
+		for (Segment segment : segments.values()) {
+			if (segment != activeSegment) {
+				oldSegments.add(segment);
+				oldSegmentIds.add(segment.id);
+			}
+		}
+		try {
+			for (Map.Entry<String, Location> entry : new ArrayList<Map.Entry<String, Location>>(index.entrySet())) {
+				if (oldSegmentIds.contains(entry.getValue().segment)) {
+					put(entry.getKey(), get(entry.getKey()));
+				}
+			}
+		} catch (IOException e) {
+			KKDebug.w("failed to compact image packs: " + e);
+			return;
+		}
+		for (Segment segment : oldSegments) {
+			segments.remove(segment.id);
+			segment.mappedBuffer = null;
+			segment.file.delete();
+		}
+	}
+
+	private void put(String key, byte[] data) throws IOException {
+		long offset = append(key, data);
+		removeFromIndex(key);
+		index.put(key, new Location(activeSegment.id, offset, data.length));
+		activeSegment.liveBytes += data.length;
+	}
+
+	/**
+	 * Appends a record and returns the offset of its data, a null data being a tombstone.
+	 */
+	private long append(String key, byte[] data) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(header);
+		output.writeUTF(key);
+		output.writeInt(data != null ? data.length : TOMBSTONE);
+		int recordLength = header.size() + (data != null ? data.length : 0);
+		if (activeSegment == null || (activeSegment.length > 0 && activeSegment.length + recordLength > SEGMENT_SIZE)) {
+			openSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1);
+		} else if (activeFile == null) {
+			openSegment(activeSegment.id);
+		}
+		activeFile.seek(activeSegment.length);
+		activeFile.write(header.toByteArray());
+		if (data != null) {
+			activeFile.write(data);
+		}
+		long offset = activeSegment.length + header.size();
+		activeSegment.length += recordLength;
+		return offset;
+	}
+
+	private void readActiveSegment(long offset, byte[] data) throws IOException {
+		if (activeFile == null) {
+			openSegment(activeSegment.id);
+		}
+		FileChannel channel = activeFile.getChannel();
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) == -1) { throw new EOFException(); }
+		}
+	}
+
+	private void openSegment(int id) throws IOException {
+		if (activeFile != null) {
+			activeFile.close();
+			activeFile = null;
+		}
+		Segment segment = segments.get(id);
+		if (segment == null) {
+			segment = new Segment(id, new File(directory, id + SEGMENT_SUFFIX));
+			segments.put(id, segment);
+		}
+		activeFile = new RandomAccessFile(segment.file, "rw");
+		activeSegment = segment;
+	}
+
+	private void removeFromIndex(String key) {
+		Location location = index.remove(key);
+		if (location != null) {
+			Segment segment = segments.get(location.segment);
+			if (segment != null) {
+				segment.liveBytes -= location.length;
+			}
+		}
+	}
+
+	private void replay(Segment segment) {
+		long offset = 0;
+		long fileLength = segment.file.length();
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+			while (true) {
+				String key;
+				try {
+					key = input.readUTF();
+				} catch (EOFException e) {
+					break;
+				}
+				int length = input.readInt();
+				long dataOffset = offset + 2 + key.getBytes("UTF-8").length + 4;
+				if (length == TOMBSTONE) {
+					removeFromIndex(key);
+				} else {
+					// skipping may run past the end of a file, a torn record has to be caught by its length
+					if (length < 0 || dataOffset + length > fileLength) { throw new EOFException(); }
+					skipFully(input, length);
+					removeFromIndex(key);
+					index.put(key, new Location(segment.id, dataOffset, length));
+					segment.liveBytes += length;
+				}
+				offset = dataOffset + Math.max(length, 0);
+			}
+		} catch (IOException e) {
+			KKDebug.w("image pack " + segment.file + " ends in a partial record: " + e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {}
+			}
+		}
+		segment.length = offset;
+		if (fileLength > offset) {
+			// drop the torn record a crash left behind so the next append starts on a record boundary
+			try {
+				RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+				file.setLength(offset);
+				file.close();
+			} catch (IOException e) {}
+		}
+		activeSegment = segment;
+	}
+
+	private static void skipFully(DataInputStream input, int count) throws IOException {
+		while (count > 0) {
+			int skipped = input.skipBytes(count);
+			if (skipped <= 0) { throw new EOFException(); }
+			count -= skipped;
+		}
+	}
+}
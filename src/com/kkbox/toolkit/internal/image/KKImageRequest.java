@@ -19,50 +19,100 @@ package com.kkbox.toolkit.internal.image;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.view.View;
 
+import com.kkbox.toolkit.image.KKImageDecodeOptions;
 import com.kkbox.toolkit.image.KKImageListener;
 import com.kkbox.toolkit.image.KKImageManager;
 import com.kkbox.toolkit.image.KKImageOnReceiveHttpHeaderListener;
+import com.kkbox.toolkit.utils.KKDebug;
 import com.kkbox.toolkit.utils.UserTask;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 
 public class KKImageRequest extends UserTask<Object, Header[], Bitmap> {
-	private final int BUFFER_SIZE = 1024;
-	private byte[] buffer = new byte[BUFFER_SIZE];
-	private HttpClient httpclient;
+	private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private static final int CACHE_BUFFER_SIZE = 8 * 1024;
+	private static final int CRYPT_BUFFER_SIZE = 64 * 1024;
+	// encrypted local files start with this, older ones were encrypted in LEGACY_CRYPT_CHUNK_SIZE chunks instead of as a whole
+	private static final byte[] LOCAL_FILE_HEADER = { 'K', 'K', 'I', 'M', 'A', 'G', 'E', '2' };
+	private static final int LEGACY_CRYPT_CHUNK_SIZE = 1024;
+	// freshness of responses that only carry validators: 10% of their Last-Modified age within this limit, or the default
+	private static final long MAX_HEURISTIC_LIFETIME = 7 * 24 * 60 * 60 * 1000L;
+	private static final long DEFAULT_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+	// direct input and output buffers for file encryption, reused by each worker thread
+	private static final ThreadLocal<ByteBuffer[]> cryptBuffers = new ThreadLocal<ByteBuffer[]>() {
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[2];
+		}
+	};
 	private KKImageRequestListener listener;
 	private HttpResponse response;
-	private Context context;
-	private View view;
+	// a pending request must not keep its view, and with it the whole activity, alive
+	private WeakReference<View> viewReference;
 	private KKImageListener imageListener;
 	private KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener;
 	private String url = "";
 	private String localPath;
-	private String cachePath;
+	private String cacheKey;
+	private KKImageDiskCache diskCache;
+	private File tempFile;
 	private int actionType;
 	private boolean isNetworkError = false;
 	private Cipher cipher = null;
 	private boolean saveToLocal = false;
+	private KKImageRequest leader;
+	private final ArrayList<KKImageRequest> waiters = new ArrayList<KKImageRequest>();
+	private boolean detached = false;
+	private int priority = KKImageManager.Priority.NORMAL;
+	private int schedulingPriority = KKImageManager.Priority.NORMAL;
+	private long sequence;
+	private int targetWidth = 0;
+	private int targetHeight = 0;
+	private boolean exactScale = false;
+	private KKImageDecodeOptions decodeOptions = KKImageDecodeOptions.AUTOMATIC;
+	private boolean warmMemory = true;
+	private long downloadedLength = 0;
+	// set once the fetch leaves the bitmap to the decode stage
+	private boolean decodePending = false;
+	private volatile boolean aborted = false;
+	// set when the image was received but could not be used, as opposed to the server not being reachable
+	private volatile boolean badContent = false;
+	private volatile HttpGet httpget;
+	private Object owner;
+	private boolean deprioritized = false;
+	private long queuedTime;
 
 	public KKImageRequest(Context context, String url, String localPath, KKImageOnReceiveHttpHeaderListener onReceiveHttpHeaderListener,
 			View view, boolean updateBackground, Cipher cipher, boolean saveToLocal) {
-		this.view = view;
+		viewReference = new WeakReference<View>(view);
 		this.saveToLocal = saveToLocal;
 		if (updateBackground) {
 			actionType = KKImageManager.ActionType.UPDATE_VIEW_BACKGROUND;
@@ -86,20 +136,225 @@ public class KKImageRequest extends UserTask<Object, Header[], Bitmap> {
 		init(context, url, localPath, cipher);
 	}
 
+	/**
+	 * A prefetch only fills the disk cache, and decodes the bitmap as well if warmMemory is set.
+	 */
+	public KKImageRequest(Context context, String url, Cipher cipher, boolean warmMemory) {
+		this.warmMemory = warmMemory;
+		actionType = KKImageManager.ActionType.PREFETCH;
+		init(context, url, null, cipher);
+	}
+
+	/**
+	 * Only brings the image into the disk cache, its tiles are decoded from there by KKImageTileRequest.
+	 */
+	public KKImageRequest(Context context, String url, String localPath, Cipher cipher) {
+		actionType = KKImageManager.ActionType.LOAD_TILES;
+		init(context, url, localPath, cipher);
+	}
+
 	private void init(Context context, String url, String localPath, Cipher cipher) {
-		BasicHttpParams params = new BasicHttpParams();
-		params.setIntParameter(HttpConnectionParams.CONNECTION_TIMEOUT, 10000);
-		params.setIntParameter(HttpConnectionParams.SO_TIMEOUT, 10000);
-		httpclient = new DefaultHttpClient(params);
 		this.url = url;
 		this.localPath = localPath;
-		this.context = context;
 		this.cipher = cipher;
+		diskCache = KKImageDiskCache.getInstance(context);
+		cacheKey = KKImageDiskCache.getKey(url);
+		queuedTime = KKImageStages.now();
 	}
 
 	public void cancel() {
+		if (leader != null) {
+			leader.removeWaiter(this);
+			leader = null;
+			return;
+		}
+		if (!waiters.isEmpty()) {
+			// other requests still wait for this fetch, only drop our own target
+			detached = true;
+			return;
+		}
+		KKImageRequestListener cancelledListener = listener;
 		listener = null;
+		aborted = true;
 		this.cancel(true);
+		// close the connection instead of letting the download run to the end
+		HttpGet request = httpget;
+		if (request != null) {
+			request.abort();
+		}
+		// whoever cancels the request, the manager has to give back the slot it holds
+		if (cancelledListener != null) {
+			cancelledListener.onCancelled(this);
+		}
+	}
+
+	/**
+	 * True once the request was cancelled, whichever stage it was in. Unlike isCancelled(), this also covers the decode
+	 * stage after the fetch task itself has finished.
+	 */
+	public boolean isAborted() {
+		return aborted;
+	}
+
+	public boolean isBadContent() {
+		return badContent;
+	}
+
+	public void addWaiter(KKImageRequest request) {
+		request.leader = this;
+		waiters.add(request);
+	}
+
+	private void removeWaiter(KKImageRequest request) {
+		waiters.remove(request);
+		if (detached && waiters.isEmpty()) {
+			cancel();
+		}
+	}
+
+	public ArrayList<KKImageRequest> getWaiters() {
+		return waiters;
+	}
+
+	public KKImageRequest getLeader() {
+		return leader;
+	}
+
+	public boolean isDetached() {
+		return detached;
+	}
+
+	public boolean canShareFetchWith(KKImageRequest request) {
+		if (actionType == KKImageManager.ActionType.DOWNLOAD || request.actionType == KKImageManager.ActionType.DOWNLOAD) { return false; }
+		if (exactScale != request.exactScale) { return false; }
+		if (!request.saveToLocal || request.localPath == null) { return true; }
+		return saveToLocal && request.localPath.equals(localPath);
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setPriority(int priority) {
+		this.priority = priority;
+		schedulingPriority = priority;
+	}
+
+	public int getSchedulingPriority() {
+		return schedulingPriority;
+	}
+
+	void setSchedulingPriority(int priority) {
+		schedulingPriority = priority;
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	public Object getOwner() {
+		return owner;
+	}
+
+	public void setOwner(Object owner) {
+		this.owner = owner;
+	}
+
+	public boolean isDeprioritized() {
+		return deprioritized;
+	}
+
+	public void setDeprioritized(boolean deprioritized) {
+		this.deprioritized = deprioritized;
+	}
+
+	public boolean isViewBound() {
+		return actionType == KKImageManager.ActionType.UPDATE_VIEW_BACKGROUND || actionType == KKImageManager.ActionType.UPDATE_VIEW_SOURCE;
+	}
+
+	public void setTargetSize(int width, int height, boolean exactScale) {
+		targetWidth = Math.max(0, width);
+		targetHeight = Math.max(0, height);
+		this.exactScale = exactScale;
+	}
+
+	public void setDecodeOptions(KKImageDecodeOptions decodeOptions) {
+		this.decodeOptions = decodeOptions;
+	}
+
+	public String getKey() {
+		return KKImageMemoryCache.getKey(url, targetWidth, targetHeight, decodeOptions);
+	}
+
+	/**
+	 * Checks the cache entry on the disk stage and decodes it on the decode stage, straight from its file unless it is
+	 * packed. The listener gets onCacheMiss if the network has to be asked.
+	 */
+	public void loadFromCache(KKImageRequestListener listener) {
+		this.listener = listener;
+		KKImageStages.execute(KKImageStages.Stage.DISK, new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				if (aborted) { return; }
+				byte[] data = null;
+				File file = null;
+				try {
+					if (findFreshCacheEntry()) {
+						data = diskCache.getPackedData(cacheKey);
+						file = data == null ? getVerifiedCacheFile() : null;
+					}
+					if (data != null || file != null) {
+						copyCacheToLocal(data, file);
+					}
+				} catch (Exception e) {
+					removeInvalidImageFiles();
+					data = null;
+					file = null;
+				}
+				if (data == null && file == null) {
+					postCacheResult(null);
+					return;
+				}
+				final byte[] packedData = data;
+				final File cacheFile = file;
+				KKImageStages.execute(KKImageStages.Stage.DECODE, new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						if (aborted) { return; }
+						Bitmap bitmap = decodeCacheEntry(packedData, cacheFile);
+						if (bitmap == null) {
+							// the local file belongs to the caller and stays, the negative cache keeps it from being retried
+							removeCacheFile();
+							badContent = true;
+						} else {
+							KKImageMetrics.recordDiskHit();
+						}
+						postCacheResult(bitmap);
+					}
+				});
+			}
+		});
+	}
+
+	private void postCacheResult(final Bitmap bitmap) {
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (listener == null || aborted) { return; }
+				if (bitmap != null) {
+					listener.onComplete(KKImageRequest.this, bitmap);
+				} else {
+					queuedTime = KKImageStages.now();
+					listener.onCacheMiss(KKImageRequest.this);
+				}
+			}
+		});
 	}
 
 	public String getUrl() {
@@ -107,7 +362,7 @@ public class KKImageRequest extends UserTask<Object, Header[], Bitmap> {
 	}
 
 	public View getView() {
-		return view;
+		return viewReference != null ? viewReference.get() : null;
 	}
 
 	public KKImageListener getImageCacheListener() {
@@ -118,51 +373,58 @@ public class KKImageRequest extends UserTask<Object, Header[], Bitmap> {
 		return actionType;
 	}
 
+	public long getDownloadedLength() {
+		return downloadedLength;
+	}
+
 	@Override
 	public Bitmap doInBackground(Object... params) {
 		listener = (KKImageRequestListener)params[0];
 		Bitmap bitmap;
+		KKImageDiskCache.Metadata staleMetadata = null;
+		long startTime = KKImageStages.now();
+		long fetchStartTime = 0;
 
+		// a failed decode on the cache path says nothing about what the network will send
+		badContent = false;
 		try {
-			int readLength;
-			// TODO: use fileOutoutStream instead
-			RandomAccessFile localRandomAccessFile = null;
-			RandomAccessFile cacheRandomAccessFile = null;
-			cachePath = KKImageManager.getTempImagePath(context, url);
-			File cacheFile = new File(cachePath);
+			// a damaged entry is dropped here, before it is copied to the local file or decoded
+			boolean cacheHit = diskCache.contains(cacheKey) && verifyCacheEntry();
 			File localFile = null;
 			if (localPath != null) {
 				localFile = new File(localPath);
 			}
+			KKImageDiskCache.Metadata metadata = diskCache.getMetadata(cacheKey);
+			if (cacheHit && actionType != KKImageManager.ActionType.DOWNLOAD && metadata != null
+					&& metadata.isExpired(System.currentTimeMillis())) {
+				// keep the expired entry around and revalidate it with the server instead of using it or the local file
+				staleMetadata = metadata;
+				cacheHit = false;
+			}
 			try {
-				if (cacheFile.exists()) {
+				if (cacheHit) {
+					KKImageMetrics.recordDiskHit();
 					if (actionType == KKImageManager.ActionType.DOWNLOAD) {
 						if (localFile == null || !localFile.exists()) {
-							cryptToFile(cachePath, localPath);
+							copyCacheToLocal();
 						}
 						return null;
 					} else {
-						bitmap = BitmapFactory.decodeFile(cachePath);
-						if (bitmap != null) {
-							if (localPath != null && saveToLocal && (localFile == null || !localFile.exists())) {
-								cryptToFile(cachePath, localPath);
-							}
-							return bitmap;
-						} else {
-							removeCacheFile();
+						if (localPath != null && saveToLocal && (localFile == null || !localFile.exists())) {
+							copyCacheToLocal();
 						}
+						decodePending = shouldDecode();
+						return null;
 					}
 				}
-				if (localFile != null && localFile.exists()) {
+				if (staleMetadata == null && localFile != null && localFile.exists()) {
 					if (actionType == KKImageManager.ActionType.DOWNLOAD) {
 						return null;
 					} else {
-						cryptToFile(localPath, cachePath);
-						bitmap = BitmapFactory.decodeFile(cachePath);
-						if (bitmap != null) {
-							return bitmap;
-						} else {
-							removeCacheFile();
+						if (promoteLocalFile()) {
+							KKImageMetrics.recordDiskHit();
+							decodePending = shouldDecode();
+							return null;
 						}
 					}
 				}
@@ -170,50 +432,103 @@ public class KKImageRequest extends UserTask<Object, Header[], Bitmap> {
 				removeInvalidImageFiles();
 			}
 			// Do fetch server resource if either cache nor local file is not valid to read
-			final HttpGet httpget = new HttpGet(url);
-			response = httpclient.execute(httpget);
-			final InputStream is = response.getEntity().getContent();
+			httpget = new HttpGet(url);
+			// cancel() aborts httpget, unless it ran before httpget was set
+			if (aborted) { return null; }
+			if (staleMetadata != null) {
+				if (staleMetadata.etag != null) {
+					httpget.addHeader("If-None-Match", staleMetadata.etag);
+				}
+				if (staleMetadata.lastModified != null) {
+					httpget.addHeader("If-Modified-Since", staleMetadata.lastModified);
+				}
+			}
+			fetchStartTime = KKImageStages.now();
+			response = KKImageManager.getHttpClient().execute(httpget);
 			publishProgress(response.getAllHeaders());
-			if (actionType == KKImageManager.ActionType.DOWNLOAD) {
-				localRandomAccessFile = new RandomAccessFile(localPath, "rw");
-				while ((readLength = is.read(buffer, 0, buffer.length)) != -1) {
-					if (cipher != null) {
-						buffer = cipher.doFinal(buffer);
-					}
-					localRandomAccessFile.write(buffer, 0, readLength);
+			if (staleMetadata != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+				if (response.getEntity() != null) {
+					response.getEntity().consumeContent();
+				}
+				diskCache.updateMetadata(cacheKey, parseMetadata(response.getAllHeaders(), staleMetadata));
+				KKImageMetrics.recordNetworkHit();
+				if (saveToLocal && localPath != null && !localFile.exists()) {
+					copyCacheToLocal();
 				}
-				localRandomAccessFile.close();
+				decodePending = shouldDecode();
+				return null;
+			}
+			final InputStream is = response.getEntity().getContent();
+			if (actionType == KKImageManager.ActionType.DOWNLOAD) {
+				downloadedLength = downloadToFile(is, localPath);
+				KKImageMetrics.recordNetworkHit();
 				return null;
 			} else {
+				OutputStream cacheOutputStream;
 				try {
-					cacheRandomAccessFile = new RandomAccessFile(cachePath, "rw");
+					tempFile = diskCache.createTempFile(cacheKey);
+					cacheOutputStream = new BufferedOutputStream(new FileOutputStream(tempFile), CACHE_BUFFER_SIZE);
 				} catch (IOException e) {
 					// we don't save to SD card if cache is full
-					return BitmapFactory.decodeStream(is);
-				}
-				while ((readLength = is.read(buffer, 0, buffer.length)) != -1) {
-					try {
-						cacheRandomAccessFile.write(buffer, 0, readLength);
-					} catch (IOException e) {
-						cacheRandomAccessFile.close();
-						removeCacheFile();
-						return null;
+					bitmap = shouldDecode() ? decodeStream(is) : null;
+					// hand the connection back to the pool
+					response.getEntity().consumeContent();
+					if (bitmap != null) {
+						KKImageMetrics.recordNetworkHit();
 					}
+					return bitmap;
 				}
-				cacheRandomAccessFile.close();
-				bitmap = BitmapFactory.decodeFile(cachePath);
-				if (bitmap != null) {
+				// decode straight from the network while the same bytes go to the cache, instead of reading the file back
+				KKImageTeeInputStream teeInputStream = new KKImageTeeInputStream(is, cacheOutputStream);
+				bitmap = shouldDecode() ? decodeStream(teeInputStream) : null;
+				boolean cached = teeInputStream.finish();
+				downloadedLength = teeInputStream.getLength();
+				long contentLength = response.getEntity().getContentLength();
+				boolean complete = contentLength < 0 || downloadedLength == contentLength;
+				// only a completely written file with a readable image header is committed to the cache
+				if (cached && complete && (bitmap != null || KKImageDecoder.isDecodable(tempFile.getAbsolutePath()))) {
 					if (saveToLocal && localPath != null) {
-						cryptToFile(cachePath, localPath);
+						encryptToFile(tempFile.getAbsolutePath(), localPath);
 					}
+					diskCache.commit(cacheKey, tempFile, parseMetadata(response.getAllHeaders(), null));
+					KKImageMetrics.recordNetworkHit();
+					// a stream that could not be decoded in one pass is decoded from the cache on the decode stage
+					decodePending = bitmap == null && shouldDecode();
 					return bitmap;
-				} else {
-					removeCacheFile();
 				}
+				tempFile.delete();
+				if (bitmap != null) {
+					// decoded from a body that was cut short
+					recycleBitmap(bitmap);
+				}
+				isNetworkError = true;
+				// a body that arrived in full but is no image, e.g. an error page, will not be any better next time
+				badContent = cached && complete;
+				return null;
 			}
 		} catch (final Exception e) {
+			if (httpget != null) {
+				// a connection in an unknown state must not go back to the pool
+				httpget.abort();
+			}
+			if (staleMetadata != null) {
+				// the server could not be reached, an expired image is better than none
+				if (tempFile != null) {
+					tempFile.delete();
+				}
+				decodePending = shouldDecode();
+				return null;
+			}
 			isNetworkError = true;
 			removeInvalidImageFiles();
+		} finally {
+			if (httpget != null) {
+				KKImageManager.getHttpClient().scheduleIdleEviction();
+				if (fetchStartTime > 0) {
+					KKImageMetrics.recordDownload(downloadedLength, KKImageStages.now() - fetchStartTime);
+				}
+			}
+			KKImageStages.record(KKImageStages.Stage.NETWORK, startTime - queuedTime, KKImageStages.now() - startTime);
 		}
 		return null;
 	}
@@ -228,14 +543,214 @@ public class KKImageRequest extends UserTask<Object, Header[], Bitmap> {
 	@Override
 	public void onPostExecute(Bitmap bitmap) {
 		if (listener == null) { return; }
-		if (isNetworkError || (actionType != KKImageManager.ActionType.DOWNLOAD && bitmap == null)) {
+		if (isNetworkError || (shouldDecode() && bitmap == null && !decodePending)) {
 			listener.onNetworkError(this);
-		} else {
+		} else if (!decodePending) {
 			listener.onComplete(this, bitmap);
+		} else {
+			// the network slot is free as soon as the image is on disk
+			listener.onFetchFinished(this);
+			KKImageStages.execute(KKImageStages.Stage.DECODE, new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					if (aborted) { return; }
+					final Bitmap decodedBitmap = decodeCacheEntry();
+					if (decodedBitmap == null) {
+						removeCacheFile();
+						badContent = true;
+					}
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (listener == null || aborted) { return; }
+							if (decodedBitmap != null) {
+								listener.onComplete(KKImageRequest.this, decodedBitmap);
+							} else {
+								listener.onNetworkError(KKImageRequest.this);
+							}
+						}
+					});
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns true if the cache holds a fresh entry, promoting the local file to the cache first if needed. Returns false
+	 * if the entry is missing or has to be revalidated by the network stage.
+	 */
+	private boolean findFreshCacheEntry() throws IOException, GeneralSecurityException {
+		if (!diskCache.contains(cacheKey)) {
+			if (localPath == null || !new File(localPath).exists() || !promoteLocalFile()) { return false; }
+		}
+		KKImageDiskCache.Metadata metadata = diskCache.getMetadata(cacheKey);
+		return metadata == null || !metadata.isExpired(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns false, dropping the entry, if the committed entry does not match its checksum. Packed entries are checked as
+	 * they are read.
+	 */
+	private boolean verifyCacheEntry() {
+		return diskCache.getPackedData(cacheKey) != null || getVerifiedCacheFile() != null;
+	}
+
+	/**
+	 * Returns the file of an entry that is not packed, or null if there is none or it does not match its checksum.
+	 */
+	private File getVerifiedCacheFile() {
+		File file = diskCache.get(cacheKey);
+		// a damaged entry is dropped before it is decoded or copied to the local file
+		return file != null && diskCache.verify(cacheKey, file) ? file : null;
+	}
+
+	private void copyCacheToLocal(byte[] packedData, File cacheFile) throws IOException, GeneralSecurityException {
+		if (!saveToLocal || localPath == null || new File(localPath).exists()) { return; }
+		if (packedData != null) {
+			encryptToFile(new ByteArrayInputStream(packedData), localPath);
+		} else {
+			encryptToFile(cacheFile.getAbsolutePath(), localPath);
+		}
+	}
+
+	private boolean promoteLocalFile() throws IOException, GeneralSecurityException {
+		tempFile = diskCache.createTempFile(cacheKey);
+		decryptToFile(localPath, tempFile.getAbsolutePath());
+		if (!KKImageDecoder.isDecodable(tempFile.getAbsolutePath())) {
+			tempFile.delete();
+			return false;
+		}
+		diskCache.commit(cacheKey, tempFile);
+		return true;
+	}
+
+	private Bitmap decodeCacheEntry() {
+		byte[] packedData = diskCache.getPackedData(cacheKey);
+		return decodeCacheEntry(packedData, packedData == null ? diskCache.get(cacheKey) : null);
+	}
+
+	/**
+	 * Returns null if the entry could not be decoded. A decoder that throws is treated the same, the stage runnables must
+	 * always report back to the listener or the request is never finished.
+	 */
+	private Bitmap decodeCacheEntry(byte[] packedData, File file) {
+		try {
+			if (packedData != null) {
+				return KKImageDecoder.decodeByteArray(packedData, targetWidth, targetHeight, exactScale, KKImageManager.getBitmapPool(),
+						decodeOptions);
+			}
+			return file != null ? decodeFile(file.getAbsolutePath()) : null;
+		} catch (RuntimeException e) {
+			KKDebug.w("failed to decode " + url + ": " + e);
+			return null;
+		}
+	}
+
+	private void copyCacheToLocal() throws IOException, GeneralSecurityException {
+		byte[] packedData = diskCache.getPackedData(cacheKey);
+		if (packedData != null) {
+			encryptToFile(new ByteArrayInputStream(packedData), localPath);
+		} else {
+			encryptToFile(getCachePath(), localPath);
+		}
+	}
+
+	/**
+	 * Entries with the same content share one file, so the path is only known once the entry is committed.
+	 */
+	private String getCachePath() throws FileNotFoundException {
+		File file = diskCache.get(cacheKey);
+		if (file == null) { throw new FileNotFoundException("no cache file for " + url); }
+		return file.getAbsolutePath();
+	}
+
+	private boolean shouldDecode() {
+		if (actionType == KKImageManager.ActionType.PREFETCH) { return warmMemory; }
+		return actionType != KKImageManager.ActionType.DOWNLOAD && actionType != KKImageManager.ActionType.LOAD_TILES;
+	}
+
+	private Bitmap decodeFile(String path) {
+		return KKImageDecoder.decodeFile(path, targetWidth, targetHeight, exactScale, KKImageManager.getBitmapPool(),
+				decodeOptions);
+	}
+
+	private Bitmap decodeStream(InputStream is) {
+		try {
+			return KKImageDecoder.decodeStream(is, targetWidth, targetHeight, exactScale, KKImageManager.getBitmapPool(),
+					decodeOptions);
+		} catch (RuntimeException e) {
+			// the body is still drained into the cache and decoded from there
+			KKDebug.w("failed to decode " + url + " while downloading: " + e);
+			return null;
+		}
+	}
+
+	private static void recycleBitmap(Bitmap bitmap) {
+		KKImageBitmapPool pool = KKImageManager.getBitmapPool();
+		if (pool != null) {
+			pool.put(bitmap);
+		} else {
+			bitmap.recycle();
+		}
+	}
+
+	private static KKImageDiskCache.Metadata parseMetadata(Header[] headers, KKImageDiskCache.Metadata previous) {
+		String etag = previous != null ? previous.etag : null;
+		String lastModified = previous != null ? previous.lastModified : null;
+		long maxAge = -1;
+		long expires = 0;
+		for (Header header : headers) {
+			String name = header.getName();
+			if (name.equalsIgnoreCase("ETag")) {
+				etag = header.getValue();
+			} else if (name.equalsIgnoreCase("Last-Modified")) {
+				lastModified = header.getValue();
+			} else if (name.equalsIgnoreCase("Expires")) {
+				try {
+					expires = Math.max(1, DateUtils.parseDate(header.getValue()).getTime());
+				} catch (DateParseException e) {
+					// an invalid date means already expired
+					expires = 1;
+				}
+			} else if (name.equalsIgnoreCase("Cache-Control")) {
+				for (String directive : header.getValue().split(",")) {
+					directive = directive.trim().toLowerCase();
+					if (directive.equals("no-cache") || directive.equals("no-store")) {
+						maxAge = 0;
+					} else if (directive.startsWith("max-age=") && maxAge != 0) {
+						try {
+							maxAge = Long.parseLong(directive.substring("max-age=".length()));
+						} catch (NumberFormatException e) {}
+					}
+				}
+			}
+		}
+		long now = System.currentTimeMillis();
+		// Cache-Control takes precedence over Expires
+		if (maxAge >= 0) {
+			expires = Math.max(1, now + maxAge * 1000);
+		} else if (expires == 0 && (etag != null || lastModified != null)) {
+			// without an explicit lifetime the entry would never be revalidated
+			expires = now + getHeuristicLifetime(lastModified, now);
+		}
+		return new KKImageDiskCache.Metadata(etag, lastModified, expires);
+	}
+
+	private static long getHeuristicLifetime(String lastModified, long now) {
+		if (lastModified == null) { return DEFAULT_HEURISTIC_LIFETIME; }
+		try {
+			long age = now - DateUtils.parseDate(lastModified).getTime();
+			return age > 0 ? Math.min(age / 10, MAX_HEURISTIC_LIFETIME) : DEFAULT_HEURISTIC_LIFETIME;
+		} catch (DateParseException e) {
+			return DEFAULT_HEURISTIC_LIFETIME;
 		}
 	}
 
 	private void removeInvalidImageFiles() {
+		if (tempFile != null) {
+			tempFile.delete();
+		}
 		removeCacheFile();
 		if (localPath != null) {
 			File localFile = new File(localPath);
@@ -244,25 +759,237 @@ public class KKImageRequest extends UserTask<Object, Header[], Bitmap> {
 	}
 
 	private void removeCacheFile() {
-		File cacheFile = new File(cachePath);
-		cacheFile.delete();
+		diskCache.remove(cacheKey);
 	}
 
-	private void cryptToFile(String sourceFilePath, String targetFilePath) throws Exception {
-		// FIXME: should have two functions: decyptToFile and encryptToFile
-		RandomAccessFile sourceFile = new RandomAccessFile(sourceFilePath, "r");
-		RandomAccessFile targetFile = new RandomAccessFile(targetFilePath, "rw");
-		int readLength;
-		do {
-			readLength = sourceFile.read(buffer, 0, BUFFER_SIZE);
-			if (readLength != -1) {
-				if (cipher != null) {
+	/**
+	 * Stores plain image data from the cache or the network as a local file. Local files are kept encrypted with cipher.
+	 */
+	private void encryptToFile(String sourceFilePath, String targetFilePath) throws IOException, GeneralSecurityException {
+		cryptFile(sourceFilePath, targetFilePath, true);
+	}
+
+	/**
+	 * Returns the number of bytes read from sourceStream.
+	 */
+	private long encryptToFile(InputStream sourceStream, String targetFilePath) throws IOException, GeneralSecurityException {
+		return cryptStream(sourceStream, targetFilePath);
+	}
+
+	/**
+	 * Stores a download as a local file like encryptToFile(). Returns the number of bytes read from sourceStream.
+	 */
+	private long downloadToFile(InputStream sourceStream, String targetFilePath) throws IOException, GeneralSecurityException {
+		if (cipher == null) { return writeToFile(sourceStream, targetFilePath); }
+		// the shared cipher is only held to encrypt the finished download, never while waiting for the network
+		File downloadFile = diskCache.createTempFile(cacheKey);
+		try {
+			long length = writeToFile(sourceStream, downloadFile.getAbsolutePath());
+			cryptFile(downloadFile.getAbsolutePath(), targetFilePath, true);
+			return length;
+		} finally {
+			downloadFile.delete();
+		}
+	}
+
+	/**
+	 * Turns a local file back into plain image data, e.g. to promote it to the cache.
+	 */
+	private void decryptToFile(String sourceFilePath, String targetFilePath) throws IOException, GeneralSecurityException {
+		if (cipher != null && !hasLocalFileHeader(sourceFilePath)) {
+			decryptLegacyFile(sourceFilePath, targetFilePath);
+		} else {
+			cryptFile(sourceFilePath, targetFilePath, false);
+		}
+	}
+
+	private static boolean hasLocalFileHeader(String path) throws IOException {
+		FileInputStream stream = new FileInputStream(path);
+		try {
+			byte[] header = new byte[LOCAL_FILE_HEADER.length];
+			return readFully(stream, header, header.length) == header.length && Arrays.equals(header, LOCAL_FILE_HEADER);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Local files written before LOCAL_FILE_HEADER was introduced were encrypted one LEGACY_CRYPT_CHUNK_SIZE chunk at a
+	 * time, each chunk with its own doFinal() and the previous output as padding. They are read back the same way so they
+	 * stay readable.
+	 */
+	private void decryptLegacyFile(String sourceFilePath, String targetFilePath) throws IOException, GeneralSecurityException {
+		FileInputStream sourceStream = new FileInputStream(sourceFilePath);
+		FileOutputStream targetStream = null;
+		try {
+			targetStream = new FileOutputStream(targetFilePath);
+			byte[] buffer = new byte[LEGACY_CRYPT_CHUNK_SIZE];
+			int readLength;
+			synchronized (cipher) {
+				while ((readLength = readFully(sourceStream, buffer, Math.min(LEGACY_CRYPT_CHUNK_SIZE, buffer.length))) > 0) {
 					buffer = cipher.doFinal(buffer);
+					targetStream.write(buffer, 0, Math.min(readLength, buffer.length));
+				}
+			}
+		} finally {
+			sourceStream.close();
+			if (targetStream != null) {
+				targetStream.close();
+			}
+		}
+	}
+
+	private static int readFully(InputStream stream, byte[] buffer, int count) throws IOException {
+		int length = 0;
+		int readLength;
+		while (length < count && (readLength = stream.read(buffer, length, count - length)) != -1) {
+			length += readLength;
+		}
+		return length;
+	}
+
+	/**
+	 * Encrypted files get LOCAL_FILE_HEADER in front of the data, which decrypting skips.
+	 */
+	private void cryptFile(String sourceFilePath, String targetFilePath, boolean encrypt) throws IOException, GeneralSecurityException {
+		FileInputStream sourceStream = new FileInputStream(sourceFilePath);
+		FileOutputStream targetStream = null;
+		try {
+			targetStream = new FileOutputStream(targetFilePath);
+			FileChannel sourceChannel = sourceStream.getChannel();
+			FileChannel targetChannel = targetStream.getChannel();
+			if (cipher == null) {
+				// let the kernel copy the file instead of passing it through a Java buffer
+				long size = sourceChannel.size();
+				long position = 0;
+				while (position < size) {
+					position += sourceChannel.transferTo(position, size - position, targetChannel);
+				}
+				return;
+			}
+			if (encrypt) {
+				ByteBuffer header = ByteBuffer.wrap(LOCAL_FILE_HEADER);
+				while (header.hasRemaining()) {
+					targetChannel.write(header);
 				}
-				targetFile.write(buffer, 0, readLength);
+			} else {
+				sourceChannel.position(LOCAL_FILE_HEADER.length);
+			}
+			synchronized (cipher) {
+				boolean finished = false;
+				try {
+					ByteBuffer input = getCryptBuffer(0, CRYPT_BUFFER_SIZE);
+					ByteBuffer output;
+					input.clear();
+					while (sourceChannel.read(input) != -1) {
+						input.flip();
+						output = getCryptBuffer(1, cipher.getOutputSize(input.remaining()));
+						output.clear();
+						cipher.update(input, output);
+						writeFully(targetChannel, output);
+						input.clear();
+					}
+					input.flip();
+					output = getCryptBuffer(1, cipher.getOutputSize(0));
+					output.clear();
+					cipher.doFinal(input, output);
+					finished = true;
+					writeFully(targetChannel, output);
+				} finally {
+					if (!finished) {
+						resetCipher();
+					}
+				}
+			}
+		} finally {
+			sourceStream.close();
+			if (targetStream != null) {
+				targetStream.close();
 			}
-		} while (readLength != -1);
-		sourceFile.close();
-		targetFile.close();
+		}
+	}
+
+	/**
+	 * doFinal() puts the cipher back into its initial state, so a file that failed halfway does not leave its state or a
+	 * partial block to the next one. The output is of no use and discarded.
+	 */
+	private void resetCipher() {
+		try {
+			cipher.doFinal();
+		} catch (GeneralSecurityException e) {
+			// the cipher is reset all the same
+		}
+	}
+
+	private static ByteBuffer getCryptBuffer(int index, int capacity) {
+		ByteBuffer[] buffers = cryptBuffers.get();
+		if (buffers[index] == null || buffers[index].capacity() < capacity) {
+			buffers[index] = ByteBuffer.allocateDirect(Math.max(capacity, CRYPT_BUFFER_SIZE));
+		}
+		return buffers[index];
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static long writeToFile(InputStream sourceStream, String targetFilePath) throws IOException {
+		byte[] buffer = new byte[CRYPT_BUFFER_SIZE];
+		FileOutputStream targetStream = new FileOutputStream(targetFilePath);
+		long length = 0;
+		try {
+			int readLength;
+			while ((readLength = sourceStream.read(buffer)) != -1) {
+				targetStream.write(buffer, 0, readLength);
+				length += readLength;
+			}
+		} finally {
+			targetStream.close();
+		}
+		return length;
+	}
+
+	/**
+	 * Only meant for sources that are already in memory or on disk, the cipher is locked until sourceStream is read.
+	 */
+	private long cryptStream(InputStream sourceStream, String targetFilePath) throws IOException, GeneralSecurityException {
+		if (cipher == null) { return writeToFile(sourceStream, targetFilePath); }
+		byte[] input = new byte[CRYPT_BUFFER_SIZE];
+		FileOutputStream targetStream = new FileOutputStream(targetFilePath);
+		long length = 0;
+		try {
+			int readLength;
+			targetStream.write(LOCAL_FILE_HEADER);
+			// the cipher is shared by all requests and keeps state across update() calls, one file at a time
+			synchronized (cipher) {
+				boolean finished = false;
+				try {
+					byte[] output = new byte[cipher.getOutputSize(input.length)];
+					while ((readLength = sourceStream.read(input)) != -1) {
+						if (output.length < cipher.getOutputSize(readLength)) {
+							output = new byte[cipher.getOutputSize(readLength)];
+						}
+						targetStream.write(output, 0, cipher.update(input, 0, readLength, output));
+						length += readLength;
+					}
+					if (output.length < cipher.getOutputSize(0)) {
+						output = new byte[cipher.getOutputSize(0)];
+					}
+					int outputLength = cipher.doFinal(output, 0);
+					finished = true;
+					targetStream.write(output, 0, outputLength);
+				} finally {
+					if (!finished) {
+						resetCipher();
+					}
+				}
+			}
+		} finally {
+			targetStream.close();
+		}
+		return length;
 	}
 }
@@ -23,4 +23,10 @@ public abstract interface KKImageRequestListener {
 	public abstract void onComplete(KKImageRequest request, Bitmap bitmap);
 
 	public abstract void onNetworkError(KKImageRequest request);
+
+	public abstract void onCacheMiss(KKImageRequest request);
+
+	public abstract void onFetchFinished(KKImageRequest request);
+
+	public abstract void onCancelled(KKImageRequest request);
 }
@@ -0,0 +1,92 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageRequestQueue
+ */
+package com.kkbox.toolkit.internal.image;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * Pending image requests ordered by priority. Within a priority, requests bound to a view are served newest first, since
+ * older rows have most likely been scrolled away, and all other requests are served in arrival order.
+ */
+public class KKImageRequestQueue {
+	private final TreeSet<KKImageRequest> requests = new TreeSet<KKImageRequest>(new Comparator<KKImageRequest>() {
+		@Override
+		public int compare(KKImageRequest lhs, KKImageRequest rhs) {
+			if (lhs.getSchedulingPriority() != rhs.getSchedulingPriority()) {
+				return lhs.getSchedulingPriority() > rhs.getSchedulingPriority() ? -1 : 1;
+			}
+			if (lhs.isViewBound() != rhs.isViewBound()) {
+				return lhs.isViewBound() ? -1 : 1;
+			}
+			if (lhs.getSequence() == rhs.getSequence()) {
+				return 0;
+			}
+			boolean lhsFirst = lhs.getSequence() < rhs.getSequence();
+			if (lhs.isViewBound()) {
+				lhsFirst = !lhsFirst;
+			}
+			return lhsFirst ? -1 : 1;
+		}
+	});
+	private long sequence = 0;
+
+	public void add(KKImageRequest request) {
+		request.setSequence(sequence++);
+		requests.add(request);
+	}
+
+	public KKImageRequest poll() {
+		// pollFirst() is only available from API 9
+		if (requests.isEmpty()) { return null; }
+		KKImageRequest request = requests.first();
+		requests.remove(request);
+		return request;
+	}
+
+	public boolean remove(KKImageRequest request) {
+		return requests.remove(request);
+	}
+
+	public boolean contains(KKImageRequest request) {
+		return requests.contains(request);
+	}
+
+	public void setPriority(KKImageRequest request, int priority) {
+		if (request.getSchedulingPriority() == priority) {
+			return;
+		}
+		boolean queued = requests.remove(request);
+		request.setSchedulingPriority(priority);
+		if (queued) {
+			requests.add(request);
+		}
+	}
+
+	public boolean isEmpty() {
+		return requests.isEmpty();
+	}
+
+	public int size() {
+		return requests.size();
+	}
+
+	public KKImageRequest[] toArray() {
+		return requests.toArray(new KKImageRequest[requests.size()]);
+	}
+}
@@ -0,0 +1,128 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageStages
+ */
+package com.kkbox.toolkit.internal.image;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors an image request moves through: disk reads, CPU bound decoding and network fetches each run on their own
+ * threads, so a cache hit never waits behind a slow download. The number of concurrent fetches is limited by
+ * KKImageManager, the disk and decode stages by their thread counts.
+ */
+public class KKImageStages {
+	public static class Stage {
+		public static final int NETWORK = 0;
+		public static final int DISK = 1;
+		public static final int DECODE = 2;
+	}
+
+	private static final String[] STAGE_NAMES = { "network", "disk", "decode" };
+	private static final int DISK_THREAD_COUNT = 2;
+	private static final int DECODE_THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	private static final ExecutorService networkExecutor = Executors.newCachedThreadPool(createThreadFactory("KKImageNetwork"));
+	private static final ExecutorService diskExecutor = Executors.newFixedThreadPool(DISK_THREAD_COUNT, createThreadFactory("KKImageDisk"));
+	private static final ExecutorService decodeExecutor = Executors.newFixedThreadPool(DECODE_THREAD_COUNT,
+			createThreadFactory("KKImageDecode"));
+	private static final long[] taskCount = new long[STAGE_NAMES.length];
+	private static final long[] totalWaitTime = new long[STAGE_NAMES.length];
+	private static final long[] totalRunTime = new long[STAGE_NAMES.length];
+	private static final long[] maxRunTime = new long[STAGE_NAMES.length];
+
+	public static class Timing {
+		public final String stage;
+		public final long count;
+		public final long totalWaitTime;
+		public final long totalRunTime;
+		public final long maxRunTime;
+
+		private Timing(String stage, long count, long totalWaitTime, long totalRunTime, long maxRunTime) {
+			this.stage = stage;
+			this.count = count;
+			this.totalWaitTime = totalWaitTime;
+			this.totalRunTime = totalRunTime;
+			this.maxRunTime = maxRunTime;
+		}
+	}
+
+	private static ThreadFactory createThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, name + " #" + count.getAndIncrement());
+			}
+		};
+	}
+
+	/**
+	 * Image fetches run here. The pool grows with demand, KKImageManager decides how many fetches run at once.
+	 */
+	public static Executor getNetworkExecutor() {
+		return networkExecutor;
+	}
+
+	/**
+	 * Runs runnable on the DISK or DECODE stage and records how long it waited and ran.
+	 */
+	public static void execute(final int stage, final Runnable runnable) {
+		final long queuedTime = now();
+		Runnable timedRunnable = new Runnable() {
+			@Override
+			public void run() {
+				long startTime = now();
+				try {
+					runnable.run();
+				} finally {
+					record(stage, startTime - queuedTime, now() - startTime);
+				}
+			}
+		};
+		if (stage == Stage.DISK) {
+			diskExecutor.execute(timedRunnable);
+		} else {
+			decodeExecutor.execute(timedRunnable);
+		}
+	}
+
+	/**
+	 * Milliseconds on a monotonic clock, for measuring stage times.
+	 */
+	public static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	public static synchronized void record(int stage, long waitTime, long runTime) {
+		taskCount[stage]++;
+		totalWaitTime[stage] += waitTime;
+		totalRunTime[stage] += runTime;
+		maxRunTime[stage] = Math.max(maxRunTime[stage], runTime);
+	}
+
+	public static synchronized Timing[] getTimings() {
+		Timing[] timings = new Timing[STAGE_NAMES.length];
+		for (int i = 0; i < timings.length; i++) {
+			timings[i] = new Timing(STAGE_NAMES[i], taskCount[i], totalWaitTime[i], totalRunTime[i], maxRunTime[i]);
+		}
+		return timings;
+	}
+}
@@ -0,0 +1,123 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageTeeInputStream
+ */
+package com.kkbox.toolkit.internal.image;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies every byte read from the wrapped stream to an output stream. A failing output only stops the copy, reading
+ * goes on so the consumer is not affected.
+ */
+public class KKImageTeeInputStream extends FilterInputStream {
+	private static final int SKIP_BUFFER_SIZE = 4096;
+	private final OutputStream out;
+	private boolean writeFailed = false;
+	private long length = 0;
+
+	public KKImageTeeInputStream(InputStream in, OutputStream out) {
+		super(in);
+		this.out = out;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int data = in.read();
+		if (data != -1) {
+			length++;
+		}
+		if (data != -1 && !writeFailed) {
+			try {
+				out.write(data);
+			} catch (IOException e) {
+				writeFailed = true;
+			}
+		}
+		return data;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int readLength = in.read(buffer, offset, count);
+		if (readLength > 0) {
+			length += readLength;
+		}
+		if (readLength > 0 && !writeFailed) {
+			try {
+				out.write(buffer, offset, readLength);
+			} catch (IOException e) {
+				writeFailed = true;
+			}
+		}
+		return readLength;
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		// skipped bytes still have to reach the output
+		byte[] buffer = new byte[(int)Math.min(count, SKIP_BUFFER_SIZE)];
+		long skipped = 0;
+		while (skipped < count) {
+			int readLength = read(buffer, 0, (int)Math.min(count - skipped, buffer.length));
+			if (readLength == -1) {
+				break;
+			}
+			skipped += readLength;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readLimit) {}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Reads whatever the consumer left in the stream and closes the output. Returns true only if the whole stream
+	 * reached the output.
+	 */
+	public boolean finish() {
+		boolean complete = true;
+		try {
+			byte[] buffer = new byte[SKIP_BUFFER_SIZE];
+			while (read(buffer, 0, buffer.length) != -1) {}
+		} catch (IOException e) {
+			complete = false;
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			writeFailed = true;
+		}
+		return complete && !writeFailed;
+	}
+}
@@ -0,0 +1,241 @@
+/* Copyright (C) 2013 KKBOX Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * ​http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/**
+ * KKImageTileRequest
+ */
+package com.kkbox.toolkit.internal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.kkbox.toolkit.image.KKImageDecodeOptions;
+import com.kkbox.toolkit.image.KKImageManager;
+import com.kkbox.toolkit.image.KKImageTileListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * The tiles of an image that intersect a viewport, decoded with BitmapRegionDecoder from the disk cache so that images far
+ * larger than the screen never have to be decoded as a whole. Tiles are TILE_SIZE pixels on a side after subsampling, so
+ * the memory a viewport takes stays about the same at every zoom level.
+ */
+public class KKImageTileRequest {
+	private static final int TILE_SIZE = 256;
+	private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	private final String url;
+	private final int sampleSize;
+	private final KKImageDecodeOptions decodeOptions;
+	private final KKImageTileListener listener;
+	private final ArrayList<Rect> missingTiles = new ArrayList<Rect>();
+	private volatile boolean cancelled = false;
+	private volatile boolean finished = false;
+	private boolean decodeStarted = false;
+
+	/**
+	 * viewport is given in image pixels, scale is the size the image is shown at relative to its own.
+	 */
+	public KKImageTileRequest(String url, Rect viewport, float scale, KKImageDecodeOptions decodeOptions, KKImageTileListener listener) {
+		this.url = url;
+		this.decodeOptions = decodeOptions;
+		this.listener = listener;
+		sampleSize = getSampleSize(scale);
+		int tileSpan = TILE_SIZE * sampleSize;
+		// tiles are aligned to a fixed grid, so they are found in the memory cache again after panning
+		for (int top = Math.max(0, viewport.top) / tileSpan * tileSpan; top < viewport.bottom; top += tileSpan) {
+			for (int left = Math.max(0, viewport.left) / tileSpan * tileSpan; left < viewport.right; left += tileSpan) {
+				missingTiles.add(new Rect(left, top, left + tileSpan, top + tileSpan));
+			}
+		}
+	}
+
+	/**
+	 * The largest power of two that still leaves at least one image pixel per screen pixel at scale.
+	 */
+	public static int getSampleSize(float scale) {
+		int sampleSize = 1;
+		while (scale > 0 && sampleSize * 2 * scale <= 1) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public boolean isFinished() {
+		return finished || cancelled;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Hands the tiles found in memoryCache to the listener right away. Returns true if no tile is left to decode.
+	 */
+	public boolean deliverCachedTiles(KKImageMemoryCache memoryCache) {
+		if (memoryCache == null) { return missingTiles.isEmpty(); }
+		Iterator<Rect> iterator = missingTiles.iterator();
+		while (iterator.hasNext()) {
+			Rect tile = iterator.next();
+			Bitmap bitmap = memoryCache.get(getTileKey(tile));
+			if (bitmap != null) {
+				iterator.remove();
+				listener.onReceiveTile(tile, sampleSize, bitmap);
+			}
+		}
+		finished = missingTiles.isEmpty();
+		return finished;
+	}
+
+	/**
+	 * Looks cacheKey up on the disk stage and decodes the missing tiles if it is there. Otherwise onMiss is run on the main
+	 * thread, e.g. to download the image first.
+	 */
+	public void decodeIfCached(final KKImageDiskCache diskCache, final String cacheKey, final Runnable onMiss) {
+		KKImageStages.execute(KKImageStages.Stage.DISK, new Runnable() {
+			@Override
+			public void run() {
+				if (cancelled) { return; }
+				final boolean cached = diskCache.contains(cacheKey);
+				mainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (cancelled) { return; }
+						if (cached) {
+							decode(diskCache, cacheKey);
+						} else {
+							onMiss.run();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Tells the listener on the main thread that there will be no tiles, unless the request was cancelled.
+	 */
+	public void notifyUnavailable() {
+		finished = true;
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!cancelled) {
+					listener.onTilesUnavailable();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Decodes the missing tiles from the disk cache entry on the decode stage, stopping early once cancelled.
+	 */
+	public void decode(final KKImageDiskCache diskCache, final String cacheKey) {
+		if (decodeStarted) { return; }
+		decodeStarted = true;
+		KKImageStages.execute(KKImageStages.Stage.DECODE, new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					decodeTiles(diskCache, cacheKey);
+				} finally {
+					finished = true;
+				}
+			}
+		});
+	}
+
+	private void decodeTiles(KKImageDiskCache diskCache, String cacheKey) {
+		if (cancelled) { return; }
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapRegionDecoder decoder;
+		try {
+			File file = diskCache.get(cacheKey);
+			if (file != null) {
+				BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+				decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+			} else {
+				byte[] packedData = diskCache.getPackedData(cacheKey);
+				if (packedData == null) {
+					// the entry was evicted or found corrupt since the caller looked it up
+					notifyUnavailable();
+					return;
+				}
+				BitmapFactory.decodeByteArray(packedData, 0, packedData.length, options);
+				decoder = BitmapRegionDecoder.newInstance(packedData, 0, packedData.length, false);
+			}
+		} catch (IOException e) {
+			// not a JPEG or PNG, the only formats BitmapRegionDecoder reads
+			notifyUnavailable();
+			return;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = decodeOptions.selectConfig(options.outMimeType);
+		options.inDither = decodeOptions.isDither();
+		try {
+			for (Rect tile : missingTiles) {
+				if (cancelled) { return; }
+				Rect region = new Rect(tile);
+				if (!region.intersect(0, 0, decoder.getWidth(), decoder.getHeight())) {
+					continue;
+				}
+				long startTime = KKImageStages.now();
+				Bitmap bitmap = decoder.decodeRegion(region, options);
+				KKImageMetrics.recordDecodeTime(KKImageStages.now() - startTime);
+				if (bitmap != null) {
+					postTile(tile, bitmap);
+				}
+			}
+		} finally {
+			decoder.recycle();
+		}
+	}
+
+	private void postTile(final Rect tile, final Bitmap bitmap) {
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				KKImageBitmapReferences.register(bitmap);
+				// the listener draws the tile for as long as it likes, so it is never reused, not even when the cache drops it
+				KKImageBitmapReferences.markEscaped(bitmap);
+				KKImageMemoryCache memoryCache = KKImageManager.getMemoryCache();
+				if (memoryCache != null) {
+					memoryCache.put(getTileKey(tile), bitmap);
+				}
+				if (!cancelled) {
+					listener.onReceiveTile(tile, sampleSize, bitmap);
+				}
+			}
+		});
+	}
+
+	private String getTileKey(Rect tile) {
+		return KKImageMemoryCache.getKey(url, 0, 0, decodeOptions) + "#tile" + sampleSize + "@" + tile.left + "," + tile.top;
+	}
+}
@@ -22,6 +22,8 @@ import android.view.View;
 import android.view.animation.LinearInterpolator;
 import android.view.animation.RotateAnimation;
 import android.widget.AbsListView;
+import android.widget.Adapter;
+import android.widget.HeaderViewListAdapter;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.LinearLayout.LayoutParams;
@@ -31,8 +33,12 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.kkbox.toolkit.R;
+import com.kkbox.toolkit.image.KKImageManager;
+import com.kkbox.toolkit.image.KKImagePrefetchAdapter;
 import com.kkbox.toolkit.utils.StringUtils;
 
+import java.util.ArrayList;
+
 public class KKListViewDelegate {
 	private static class State {
 		public static final int NORMAL = 0;
@@ -44,10 +50,23 @@ public class KKListViewDelegate {
 
 	private final ListView.OnScrollListener onScrollListener = new ListView.OnScrollListener() {
 		@Override
-		public void onScrollStateChanged(AbsListView view, int scrollState) {}
+		public void onScrollStateChanged(AbsListView view, int scrollState) {
+			// rows pass by too fast during a fling to be worth a download or decode
+			if (scrollState == SCROLL_STATE_FLING) {
+				KKImageManager.pauseRequests(listView);
+			} else {
+				KKImageManager.resumeRequests(listView);
+			}
+			if (externalOnScrollListener != null) {
+				externalOnScrollListener.onScrollStateChanged(view, scrollState);
+			}
+		}
 
 		@Override
 		public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+			if (externalOnScrollListener != null) {
+				externalOnScrollListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+			}
 			headerViewIsFirstItem = (firstVisibleItem == 0) ? true : false;
 			boolean footerViewIsLastItem = false;
 			if (firstVisibleItem + visibleItemCount == totalItemCount && totalItemCount != 0) {
@@ -56,6 +75,7 @@ public class KKListViewDelegate {
 			if (footerViewIsLastItem && currentState == State.NORMAL && footerViewAdded) {
 				updateState(State.LOADING_MORE);
 			}
+			prefetchImages(firstVisibleItem, visibleItemCount);
 		}
 	};
 
@@ -77,6 +97,10 @@ public class KKListViewDelegate {
 	private boolean headerViewIsFirstItem = false;
 	private Context context;
 	private ListView listView;
+	private KKImageManager prefetchImageManager;
+	private int prefetchCount = 0;
+	private int lastPrefetchPosition = -1;
+	private ListView.OnScrollListener externalOnScrollListener;
 
 	public KKListViewDelegate(Context context, ListView listView) {
 		this.context = context;
@@ -104,10 +128,35 @@ public class KKListViewDelegate {
 		String lastUpdatedTime = (String)context.getResources().getText(R.string.last_update) + " "
 				+ StringUtils.timeMillisToString(System.currentTimeMillis(), "yyyy-MM-dd HH:mm");
 		labelPullToRefreshUpdatedAt.setText(lastUpdatedTime);
-		listView.setOnScrollListener(onScrollListener);
 		this.onRefreshListener = onRefreshListener;
 	}
 
+	/**
+	 * The listener the list view has to be given, it passes every call on to the one set through setOnScrollListener().
+	 */
+	public ListView.OnScrollListener getOnScrollListener() {
+		return onScrollListener;
+	}
+
+	public void setOnScrollListener(ListView.OnScrollListener onScrollListener) {
+		externalOnScrollListener = onScrollListener;
+	}
+
+	public void setImagePrefetch(KKImageManager imageManager, int count) {
+		prefetchImageManager = imageManager;
+		prefetchCount = count;
+		lastPrefetchPosition = -1;
+	}
+
+	public void onDetachedFromWindow() {
+		if (prefetchImageManager != null) {
+			prefetchImageManager.cancelPrefetch();
+		}
+		lastPrefetchPosition = -1;
+		// a list taken down mid-fling never reports that it settled
+		KKImageManager.resumeRequests(listView);
+	}
+
 	public void setLoadMore(KKListViewOnLoadMoreListener onLoadMoreListener) {
 		if (!footerViewAdded) {
 			LayoutInflater inflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
@@ -191,9 +240,29 @@ public class KKListViewDelegate {
 	}
 
 	public void setAdapter() {
+		lastPrefetchPosition = -1;
 		loadCompleted();
 	}
 
+	private void prefetchImages(int firstVisibleItem, int visibleItemCount) {
+		if (prefetchImageManager == null || prefetchCount <= 0) { return; }
+		Adapter adapter = listView.getAdapter();
+		if (adapter instanceof HeaderViewListAdapter) {
+			adapter = ((HeaderViewListAdapter)adapter).getWrappedAdapter();
+		}
+		if (!(adapter instanceof KKImagePrefetchAdapter)) { return; }
+		// only look ahead again once the last visible row has changed
+		int position = Math.max(0, firstVisibleItem + visibleItemCount - listView.getHeaderViewsCount());
+		if (position == lastPrefetchPosition) { return; }
+		lastPrefetchPosition = position;
+		ArrayList<String> urls = new ArrayList<String>();
+		int end = Math.min(position + prefetchCount, adapter.getCount());
+		for (int i = position; i < end; i++) {
+			urls.add(((KKImagePrefetchAdapter)adapter).getImageUrl(i));
+		}
+		prefetchImageManager.prefetch(urls);
+	}
+
 	private void setHeaderViewHeight(int height) {
 		firstItemToTopHeight = height;
 		LinearLayout.LayoutParams containerLayoutParams = new LinearLayout.LayoutParams(LayoutParams.MATCH_PARENT,
@@ -88,6 +88,7 @@ public class KKDragAndDropListView extends ListView {
 			case MotionEvent.ACTION_UP:
 				if (viewDrag != null) {
 					windowManager.removeViewImmediate(viewDrag);
+					KKImageManager.releaseViewBitmaps(viewDrag);
 					viewDrag = null;
 					ListAdapter adapter = getAdapter();
 					if (isLastItem) {
@@ -47,6 +47,13 @@ public class KKExpandableListView extends ExpandableListView {
 	public KKExpandableListView(Context context, AttributeSet attrs, int defStyle) {
 		super(context, attrs, defStyle);
 		delegate = new KKListViewDelegate(context, this);
+		super.setOnScrollListener(delegate.getOnScrollListener());
+	}
+
+	@Override
+	public void setOnScrollListener(OnScrollListener onScrollListener) {
+		// the delegate listens itself to pause image loading while flinging, and passes the calls on
+		delegate.setOnScrollListener(onScrollListener);
 	}
 
 	public void setPullToRefresh(OnRefreshListener onRefreshListener) {
@@ -73,6 +80,12 @@ public class KKExpandableListView extends ExpandableListView {
 		delegate.setAdapter();
 	}
 
+	@Override
+	protected void onDetachedFromWindow() {
+		delegate.onDetachedFromWindow();
+		super.onDetachedFromWindow();
+	}
+
 	public void loadCompleted() {
 		delegate.loadCompleted();
 	}
@@ -30,8 +30,12 @@ import android.view.animation.Animation.AnimationListener;
 import android.view.animation.AnimationUtils;
 
 import com.kkbox.toolkit.R;
+import com.kkbox.toolkit.api.KKAPIBase;
+import com.kkbox.toolkit.image.KKImageManager;
 import com.kkbox.toolkit.utils.KKDebug;
 
+import javax.crypto.Cipher;
+
 public abstract class KKFragment extends Fragment {
 
 	public static class AnimationType {
@@ -116,6 +120,14 @@ public abstract class KKFragment extends Fragment {
 		dataFetchedStatus = DataFetchStatus.ERROR;
 	}
 
+	/**
+	 * Creates a KKImageManager owned by this fragment. Its image requests give way to others while the fragment is paused
+	 * and are cancelled when its view is destroyed.
+	 */
+	public KKImageManager createImageManager(Cipher localCipher) {
+		return new KKImageManager(getActivity(), localCipher, this);
+	}
+
 	public KKActivity getKKActivity() {
 		return (KKActivity)getActivity();
 	}
@@ -251,6 +263,7 @@ public abstract class KKFragment extends Fragment {
 	public void onResume() {
 		super.onResume();
 		KKDebug.i(getClass().getSimpleName() + " onResume");
+		KKImageManager.restoreRequests(this);
 		activity.activateSubFragment(this);
 		if (activity.getKKActionBar() != null) {
 			activity.invalidateOptionsMenu();
@@ -267,6 +280,15 @@ public abstract class KKFragment extends Fragment {
 	@Override
 	public void onPause() {
 		super.onPause();
+		// images of a paused fragment may still be needed when it comes back, they only give way to the others
+		KKImageManager.deprioritizeRequests(this);
 		activity.deactivateSubFragment(this);
 	}
+
+	@Override
+	public void onDestroyView() {
+		super.onDestroyView();
+		KKImageManager.cancelRequests(this);
+		KKAPIBase.cancelRequests(this);
+	}
 }
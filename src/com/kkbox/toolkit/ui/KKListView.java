@@ -23,6 +23,7 @@ import android.view.MotionEvent;
 import android.widget.ListAdapter;
 import android.widget.ListView;
 
+import com.kkbox.toolkit.image.KKImageManager;
 import com.kkbox.toolkit.internal.ui.KKListViewDelegate;
 import com.kkbox.toolkit.internal.ui.KKListViewOnLoadMoreListener;
 import com.kkbox.toolkit.internal.ui.KKListViewOnRefreshListener;
@@ -50,6 +51,13 @@ public class KKListView extends ListView {
 	public KKListView(Context context, AttributeSet attrs, int defStyle) {
 		super(context, attrs, defStyle);
 		delegate = new KKListViewDelegate(context, this);
+		super.setOnScrollListener(delegate.getOnScrollListener());
+	}
+
+	@Override
+	public void setOnScrollListener(OnScrollListener onScrollListener) {
+		// the delegate listens itself to pause image loading while flinging, and passes the calls on
+		delegate.setOnScrollListener(onScrollListener);
 	}
 
 	public void setPullToRefresh(OnRefreshListener onRefreshListener) {
@@ -59,6 +67,13 @@ public class KKListView extends ListView {
 	public void setLoadMore(OnLoadMoreListener onLoadMoreListener) {
 		delegate.setLoadMore(onLoadMoreListener);
 	}
+
+	/**
+	 * Prefetches the images of the next count rows while scrolling. The adapter has to implement KKImagePrefetchAdapter.
+	 */
+	public void setImagePrefetch(KKImageManager imageManager, int count) {
+		delegate.setImagePrefetch(imageManager, count);
+	}
 	
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
@@ -76,6 +91,12 @@ public class KKListView extends ListView {
 		delegate.setAdapter();
 	}
 
+	@Override
+	protected void onDetachedFromWindow() {
+		delegate.onDetachedFromWindow();
+		super.onDetachedFromWindow();
+	}
+
 	public void loadCompleted() {
 		delegate.loadCompleted();
 	}
@@ -21,7 +21,6 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -30,26 +29,41 @@ import java.util.HashMap;
 import java.util.Iterator;
 
 public class StringUtils {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<MessageDigest> md5Digest = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				KKDebug.e(e.toString());
+				return null;
+			}
+		}
+	};
+	private static final ThreadLocal<char[]> md5Chars = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[32];
+		}
+	};
+
 	public static String reverseString(String toReverse) {
 		final StringBuffer buffer = new StringBuffer(toReverse);
 		return buffer.reverse().toString();
 	}
 
 	public static String getMd5Hash(String input) {
-		try {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			byte[] messageDigest = md.digest(input.getBytes());
-			BigInteger number = new BigInteger(1, messageDigest);
-			String md5 = number.toString(16);
-
-			while (md5.length() < 32)
-				md5 = "0" + md5;
-
-			return md5;
-		} catch (NoSuchAlgorithmException e) {
-			KKDebug.e(e.toString());
-			return null;
+		// called for every image lookup, so the digest and the hex buffer are reused per thread
+		MessageDigest md = md5Digest.get();
+		if (md == null) { return null; }
+		byte[] messageDigest = md.digest(input.getBytes());
+		char[] md5 = md5Chars.get();
+		for (int i = 0; i < messageDigest.length; i++) {
+			md5[i * 2] = HEX_DIGITS[(messageDigest[i] >> 4) & 0x0f];
+			md5[i * 2 + 1] = HEX_DIGITS[messageDigest[i] & 0x0f];
 		}
+		return new String(md5);
 	}
 
 	public static String hashMapToString(HashMap<String, String> map) {
@@ -25,6 +25,7 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
@@ -378,6 +379,21 @@ public abstract class UserTask<Params, Progress, Result> {
      *         {@link UserTask.Status#RUNNING} or {@link UserTask.Status#FINISHED}.
      */
     public final UserTask<Params, Progress, Result> execute(Params... params) {
+        return executeOnExecutor(sExecutor, params);
+    }
+
+    /**
+     * Like {@link #execute(Object[])}, but runs the task on the given executor
+     * instead of the shared UserTask thread pool.
+     *
+     * This method must be invoked on the UI thread.
+     *
+     * @param exec The executor to run the task on.
+     * @param params The parameters of the task.
+     *
+     * @return This instance of UserTask.
+     */
+    public final UserTask<Params, Progress, Result> executeOnExecutor(Executor exec, Params... params) {
         if (mStatus != Status.PENDING) {
             switch (mStatus) {
                 case RUNNING:
@@ -395,7 +411,7 @@ public abstract class UserTask<Params, Progress, Result> {
         onPreExecute();
 
         mWorker.mParams = params;
-        sExecutor.execute(mFuture);
+        exec.execute(mFuture);
 
         return this;
     }